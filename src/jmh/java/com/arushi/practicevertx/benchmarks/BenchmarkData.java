@@ -0,0 +1,24 @@
+package com.arushi.practicevertx.benchmarks;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    static JsonObject product(int i) {
+        return new JsonObject()
+                .put("number", String.format("P-%06d", i))
+                .put("description", "Benchmark product number " + i + " with a reasonably long description");
+    }
+
+    static JsonObject productList(int size) {
+        JsonArray products = new JsonArray();
+        for (int i = 0; i < size; i++) {
+            products.add(product(i).put("_id", "65f0c0ffee" + String.format("%014d", i)));
+        }
+        return new JsonObject().put("products", products);
+    }
+}
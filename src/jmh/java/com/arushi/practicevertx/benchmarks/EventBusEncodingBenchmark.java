@@ -0,0 +1,53 @@
+package com.arushi.practicevertx.benchmarks;
+
+import com.arushi.practicevertx.eventbus.ProductMessage;
+import com.arushi.practicevertx.eventbus.ProductMessageCodec;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of moving a reply across the event bus : the old JSON string round trip
+// against the binary cluster codec and the local pass-by-reference path
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventBusEncodingBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int productCount;
+
+    private final ProductMessageCodec codec = new ProductMessageCodec();
+    private JsonObject reply;
+
+    @Setup
+    public void setup() {
+        reply = BenchmarkData.productList(productCount);
+    }
+
+    @Benchmark
+    public JsonObject jsonStringRoundTrip() {
+        // toString() on send and new JsonObject(...) on receive
+        return new JsonObject(reply.toString());
+    }
+
+    @Benchmark
+    public JsonObject binaryCodecRoundTrip() {
+        Buffer wire = Buffer.buffer();
+        codec.encodeToWire(wire, ProductMessage.of(reply));
+        return codec.decodeFromWire(0, wire).json();
+    }
+
+    @Benchmark
+    public JsonObject localCodecTransform() {
+        return codec.transform(ProductMessage.of(reply)).json();
+    }
+}
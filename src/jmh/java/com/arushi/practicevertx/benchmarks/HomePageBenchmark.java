@@ -0,0 +1,64 @@
+package com.arushi.practicevertx.benchmarks;
+
+import com.arushi.practicevertx.resources.HomePageTemplate;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+// Home page rendering : the former per-request Scanner read and replaceAllTokens loop
+// against the precompiled template
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HomePageBenchmark {
+
+    private Vertx vertx;
+    private HomePageTemplate template;
+    private File file;
+
+    @Setup
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+        template = HomePageTemplate.load(vertx, "webroot/home.html", 0)
+                .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        file = new File(getClass().getClassLoader().getResource("webroot/home.html").getFile());
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close();
+    }
+
+    @Benchmark
+    public String scannerAndReplaceAllTokens() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        try (Scanner scanner = new Scanner(file)) {
+            while (scanner.hasNextLine()) {
+                builder.append(scanner.nextLine()).append("\n");
+            }
+        }
+
+        String mappedHtml = builder.toString();
+        while (mappedHtml.contains("{name}")) {
+            mappedHtml = mappedHtml.replace("{name}", "Arushi");
+        }
+        return mappedHtml;
+    }
+
+    @Benchmark
+    public Buffer precompiledTemplate() {
+        return template.render(Map.of("name", "Arushi"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.arushi.practicevertx.benchmarks;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Response body encoding : pretty printed, as the handlers do, against compact JSON
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonEncodingBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int productCount;
+
+    private JsonObject reply;
+
+    @Setup
+    public void setup() {
+        reply = BenchmarkData.productList(productCount);
+    }
+
+    @Benchmark
+    public String encodePrettily() {
+        return Json.encodePrettily(reply);
+    }
+
+    @Benchmark
+    public String encodeCompact() {
+        return reply.encode();
+    }
+
+    @Benchmark
+    public Buffer encodeToBuffer() {
+        return reply.toBuffer();
+    }
+}
@@ -0,0 +1,91 @@
+package com.arushi.practicevertx.benchmarks;
+
+import com.arushi.practicevertx.APIVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end ProductResources handlers : HTTP client -> APIVerticle -> event bus -> in-memory stand-in
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProductApiBenchmark {
+
+    @Param({"0", "10000"})
+    public int cacheSize;
+
+    @Param({"100"})
+    public int productCount;
+
+    private Vertx vertx;
+    private HttpClient client;
+    private int port;
+
+    @Setup
+    public void setup() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        vertx = Vertx.vertx();
+        new StubMongoService(productCount).register(vertx);
+
+        JsonObject config = new JsonObject()
+                .put("http.port", port)
+                .put("http.instances", 1)
+                .put("products.cache.maxSize", cacheSize);
+        await(vertx.deployVerticle(APIVerticle.class.getName(), new DeploymentOptions().setConfig(config)));
+
+        client = vertx.createHttpClient(new HttpClientOptions().setDefaultPort(port).setKeepAlive(true));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Benchmark
+    public Buffer getProductById() throws Exception {
+        return call(HttpMethod.GET, "/api/v1/products/1", null);
+    }
+
+    @Benchmark
+    public Buffer getAllProducts() throws Exception {
+        return call(HttpMethod.GET, "/api/v1/products", null);
+    }
+
+    @Benchmark
+    public Buffer addProduct() throws Exception {
+        return call(HttpMethod.POST, "/api/v1/products", BenchmarkData.product(1).toBuffer());
+    }
+
+    private Buffer call(HttpMethod method, String uri, Buffer body) throws Exception {
+        return await(client.request(method, uri)
+                .compose(request -> {
+                    request.putHeader("AuthToken", "123");
+                    return body == null ? request.send() : request.putHeader("content-type", "application/json").send(body);
+                })
+                .compose(response -> response.body()));
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,339 @@
+package com.arushi.practicevertx.benchmarks;
+
+import com.arushi.practicevertx.database.CursorStreamer;
+import com.arushi.practicevertx.database.IteratorReadStream;
+import com.arushi.practicevertx.database.MongoManager;
+import com.arushi.practicevertx.database.ProductQuery;
+import com.arushi.practicevertx.database.ProductStats;
+import com.arushi.practicevertx.database.ProductStore;
+import com.arushi.practicevertx.eventbus.FailureCodes;
+import com.arushi.practicevertx.eventbus.LocalConsumers;
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import com.arushi.practicevertx.eventbus.ProductMessage;
+import com.arushi.practicevertx.eventbus.ProductMessageCodec;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// In-memory stand-in for MongoManager, answering the same commands on the same address,
+// and publishing changes like ChangeFeed does, so the API can be benchmarked without a database.
+// Products and the collection are versioned like the real stores version them, so the API takes the same
+// ETag, not modified and If-Match paths against the stub. Listings take the ProductQuery filters, fields
+// and keyset paging, kept sorted on (number, _id) like the Mongo index, and streaming, bulk inserts, counts
+// and stats are answered too, so every product endpoint can be loaded. Replies can be delayed to stand in
+// for the time a real Mongo takes.
+public class StubMongoService {
+
+    private static final int STREAM_BATCH_SIZE = 100;
+    private static final Comparator<Key> KEY_ORDER = Comparator
+            .comparing((Key key) -> key.number, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(key -> key.id);
+
+    private final Map<String, JsonObject> products = new HashMap<>();
+    // The same products in listing order
+    private final NavigableMap<Key, JsonObject> sorted = new TreeMap<>(KEY_ORDER);
+    private long nextId = 0;
+    private long collectionVersion = 0;
+    private Vertx vertx;
+    private long latencyMillis = 0;
+    private long jitterMillis = 0;
+
+    public StubMongoService(int productCount) {
+        for (int i = 0; i < productCount; i++) {
+            add(BenchmarkData.product(i));
+        }
+    }
+
+    // Delay every reply by latencyMillis plus up to jitterMillis more, picked at random
+    public StubMongoService withLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    public void register(Vertx vertx) {
+        this.vertx = vertx;
+        ProductMessageCodec.register(vertx);
+
+        vertx.eventBus().<ProductMessage>consumer(MongoManager.serviceName(), message -> {
+            ProductCommand command = ProductCommand.of(message);
+            JsonObject input = message.body().json();
+
+            if (command == null) {
+                message.fail(FailureCodes.UNKNOWN_COMMAND, "Unknown command");
+                return;
+            }
+
+            JsonObject reply;
+            switch (command) {
+                case FIND_ALL:
+                    if (input.getLong("ifNoneMatch", -1L) == collectionVersion) {
+                        reply = notModified(collectionVersion);
+                    } else {
+                        reply = findAll(input);
+                    }
+                    break;
+                case FIND_ALL_STREAM:
+                    JsonObject projection = ProductQuery.projection(input);
+                    List<JsonObject> streamed = new ArrayList<>();
+                    for (JsonObject listed : matching(input, sorted.descendingMap())) {
+                        streamed.add(ProductQuery.project(projection, listed.copy()));
+                    }
+                    new CursorStreamer(vertx,
+                                        new IteratorReadStream<>(vertx.getOrCreateContext(), streamed.iterator()),
+                                        input.getString("address"),
+                                        "ndjson".equals(input.getString("format")),
+                                        STREAM_BATCH_SIZE).start();
+                    reply = new JsonObject().put("streaming", true);
+                    break;
+                case COUNT:
+                    int count = ProductQuery.filter(input).isEmpty() ? products.size() : matching(input, sorted).size();
+                    reply = new JsonObject().put("count", count).put("estimated", false);
+                    break;
+                case STATS:
+                    ProductStats stats = new ProductStats(input);
+                    for (JsonObject listed : matching(input, sorted)) {
+                        Object number = listed.getValue("number");
+                        stats.add(number == null ? null : String.valueOf(number), listed.getValue("description"));
+                    }
+                    reply = stats.toJson();
+                    break;
+                case FIND_BY_ID:
+                    JsonObject product = products.get(input.getString("id"));
+                    if (product == null) {
+                        reply = new JsonObject().put("error", "No items found");
+                    } else if (ProductStore.versionOf(product) == input.getLong("ifNoneMatch", -1L)) {
+                        reply = notModified(ProductStore.versionOf(product));
+                    } else {
+                        reply = product;
+                    }
+                    break;
+                case FIND_BY_IDS:
+                    JsonObject found = new JsonObject();
+                    for (Object id : input.getJsonArray("ids")) {
+                        if (products.containsKey(id)) {
+                            found.put((String) id, products.get(id));
+                        }
+                    }
+                    reply = new JsonObject().put("products", found);
+                    break;
+                case ADD:
+                    String id = add(input.getJsonObject("product"));
+                    if (id == null) {
+                        reply = new JsonObject().put("error", "Item could not be added");
+                    } else {
+                        changed("insert", id);
+                        reply = ProductStore.added(id, products.get(id));
+                    }
+                    break;
+                case BULK_INSERT:
+                    JsonArray results = new JsonArray();
+                    for (Object inserted : input.getJsonArray("products")) {
+                        String insertedId = add((JsonObject) inserted);
+                        if (insertedId == null) {
+                            results.add(new JsonObject().put("error", "Duplicate id"));
+                        } else {
+                            changed("insert", insertedId);
+                            results.add(new JsonObject().put("id", insertedId));
+                        }
+                    }
+                    reply = new JsonObject().put("results", results);
+                    break;
+                case UPDATE:
+                    reply = update(input.getString("id"), input.getJsonObject("product"), input.getLong("expectedVersion", -1L));
+                    break;
+                case DELETE:
+                    boolean deleted = remove(input.getString("id")) != null;
+                    if (deleted) {
+                        changed("delete", input.getString("id"));
+                    }
+                    reply = deleted ? new JsonObject().put("deleted", true) : ProductStore.notFound();
+                    break;
+                default:
+                    message.fail(FailureCodes.UNKNOWN_COMMAND, "Not supported by the stub : " + command);
+                    return;
+            }
+
+            long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                JsonObject delayed = reply;
+                vertx.setTimer(delay, id -> reply(message, input, delayed));
+            } else {
+                reply(message, input, reply);
+            }
+        });
+        LocalConsumers.register(vertx, MongoManager.serviceName());
+    }
+
+    // Same headers as MongoManager replies with : status, version, and an empty body when not modified
+    private void reply(Message<ProductMessage> message, JsonObject input, JsonObject reply) {
+        DeliveryOptions options = new DeliveryOptions().addHeader(LocalConsumers.NODE_HEADER, LocalConsumers.NODE_ID);
+        if (!input.getBoolean("raw", false)) {
+            message.reply(ProductMessage.of(reply), options);
+            return;
+        }
+
+        if (reply.getValue(ProductStore.VERSION_FIELD) instanceof Number) {
+            options.addHeader(ProductMessage.VERSION_HEADER, String.valueOf(reply.getLong(ProductStore.VERSION_FIELD)));
+        }
+        if (reply.getBoolean("notModified", false)) {
+            message.reply(ProductMessage.raw(Buffer.buffer()), options.addHeader(ProductMessage.STATUS_HEADER, "304"));
+        } else {
+            String status = reply.containsKey("error") ? "400" : "200";
+            message.reply(ProductMessage.raw(reply.toBuffer()), options.addHeader(ProductMessage.STATUS_HEADER, status));
+        }
+    }
+
+    // Like the stores do : the version only moves forward, and only from expectedVersion when one is given
+    private JsonObject update(String id, JsonObject changes, long expectedVersion) {
+        JsonObject existing = products.get(id);
+        if (existing == null) {
+            return ProductStore.notFound();
+        }
+
+        long version = ProductStore.versionOf(existing);
+        if (expectedVersion >= 0 && version != expectedVersion) {
+            return ProductStore.conflict(version);
+        }
+
+        sorted.remove(keyOf(existing));
+        existing.mergeIn(changes)
+                .put("_id", id)
+                .put(ProductStore.VERSION_FIELD, version + 1)
+                .put(ProductStore.LAST_MODIFIED_FIELD, System.currentTimeMillis());
+        sorted.put(keyOf(existing), existing);
+        changed("update", id);
+        return existing;
+    }
+
+    private static JsonObject notModified(long version) {
+        return new JsonObject().put("notModified", true).put(ProductStore.VERSION_FIELD, version);
+    }
+
+    // Bump the collection version and tell the API about the change, like a store does
+    private void changed(String op, String id) {
+        collectionVersion++;
+        vertx.eventBus().publish(MongoManager.invalidationAddress(),
+                                    new JsonObject().put("id", id).put("collectionVersion", collectionVersion));
+
+        JsonObject change = new JsonObject()
+                .put("id", String.valueOf(collectionVersion))
+                .put("op", op)
+                .put("productId", id);
+        if (products.containsKey(id)) {
+            change.put("product", products.get(id).copy());
+        }
+        vertx.eventBus().publish(MongoManager.changesAddress(), change);
+    }
+
+    // A page of the listing like the stores answer it : newest numbers first unless "sort" is "asc",
+    // after the "after" cursor, and up to "limit" products plus a "next" cursor when there are more
+    private JsonObject findAll(JsonObject input) {
+        int limit = input.getInteger("limit", 0);
+        String after = input.getString("after");
+        NavigableMap<Key, JsonObject> listing = "asc".equals(input.getString("sort")) ? sorted : sorted.descendingMap();
+
+        if (after != null) {
+            JsonObject cursor;
+            try {
+                cursor = ProductQuery.decodeCursor(after);
+            } catch (IllegalArgumentException | DecodeException e) {
+                return new JsonObject().put("error", "Invalid cursor");
+            }
+            Object number = cursor.getValue("number");
+            listing = listing.tailMap(new Key(number == null ? null : String.valueOf(number), cursor.getString("_id")), false);
+        }
+
+        List<JsonObject> page = matching(input, listing, limit > 0 ? limit + 1 : 0);
+        if (page.isEmpty() && limit <= 0 && after == null) {
+            return new JsonObject().put("error", "No items found");
+        }
+
+        JsonObject reply = new JsonObject();
+        if (limit > 0 && page.size() > limit) {
+            page = page.subList(0, limit);
+            reply.put("next", ProductQuery.encodeCursor(page.get(limit - 1)));
+        }
+        JsonObject projection = ProductQuery.projection(input);
+        JsonArray listed = new JsonArray();
+        for (JsonObject product : page) {
+            listed.add(ProductQuery.project(projection, product));
+        }
+        return reply.put("products", listed).put(ProductStore.VERSION_FIELD, collectionVersion);
+    }
+
+    private static List<JsonObject> matching(JsonObject options, NavigableMap<Key, JsonObject> listing) {
+        return matching(options, listing, 0);
+    }
+
+    // The products of the listing matching the ProductQuery filters, at most max of them unless max is 0
+    private static List<JsonObject> matching(JsonObject options, NavigableMap<Key, JsonObject> listing, int max) {
+        List<JsonObject> found = new ArrayList<>();
+        for (JsonObject product : listing.values()) {
+            if (ProductQuery.matches(options, product)) {
+                found.add(product);
+                if (found.size() == max) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    // Ids are generated unless the product comes with one, null when a product with that id exists
+    private String add(JsonObject product) {
+        Object givenId = product.getValue("_id");
+        String id;
+        if (givenId != null) {
+            id = String.valueOf(givenId);
+            if (products.containsKey(id)) {
+                return null;
+            }
+        } else {
+            do {
+                id = String.valueOf(nextId++);
+            } while (products.containsKey(id));
+        }
+        JsonObject stored = ProductStore.versioned(product).put("_id", id);
+        products.put(id, stored);
+        sorted.put(keyOf(stored), stored);
+        return id;
+    }
+
+    private JsonObject remove(String id) {
+        JsonObject removed = products.remove(id);
+        if (removed != null) {
+            sorted.remove(keyOf(removed));
+        }
+        return removed;
+    }
+
+    private static Key keyOf(JsonObject product) {
+        Object number = product.getValue("number");
+        return new Key(number == null ? null : String.valueOf(number), product.getString("_id"));
+    }
+
+    // Listing sort key of a product
+    private static final class Key {
+        private final String number;
+        private final String id;
+
+        private Key(String number, String id) {
+            this.number = number;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.arushi.practicevertx.loadtest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Open model load : requests are started at a fixed rate whatever the response times, like independent
+// clients would. Each request has an intended start time on that schedule, and its latency is measured
+// from there, so a stall that delays sending is counted against the requests it delays
+// (no coordinated omission). The latency from the actual send is recorded too, for comparison.
+// Only used from one Vert.x context, so it is not synchronized.
+public class LoadGenerator {
+
+    public enum Op { GET, LIST, POST, PUT, DELETE }
+
+    private final Vertx vertx;
+    private final HttpClient client;
+    private final String authToken;
+    private final double ratePerSecond;
+    private final Map<Op, Integer> mix;
+    private final int totalWeight;
+
+    // Ids of products known to exist, picked from at random by GET, PUT and DELETE
+    private final List<String> ids = new ArrayList<>();
+    private long nextNumber = 1_000_000;
+
+    private final Map<Op, Stats> stats = new EnumMap<>(Op.class);
+    private int outstanding = 0;
+
+    public LoadGenerator(Vertx vertx, HttpClient client, String authToken, double ratePerSecond, Map<Op, Integer> mix) {
+        this.vertx = vertx;
+        this.client = client;
+        this.authToken = authToken;
+        this.ratePerSecond = ratePerSecond;
+        this.mix = mix;
+        this.totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        resetStats();
+    }
+
+    public Map<Op, Stats> stats() {
+        return stats;
+    }
+
+    public void resetStats() {
+        for (Op op : Op.values()) {
+            stats.put(op, new Stats());
+        }
+    }
+
+    // Add products through the API, a bounded number at a time, so GET, PUT and DELETE have ids to work on
+    public Future<Void> seed(int count, int concurrency) {
+        Promise<Void> done = Promise.promise();
+        int[] started = {0};
+        int[] finished = {0};
+
+        Runnable[] next = new Runnable[1];
+        next[0] = () -> {
+            if (started[0] >= count) {
+                return;
+            }
+            started[0]++;
+            send(Op.POST, System.nanoTime(), false).onComplete(v -> {
+                if (++finished[0] == count) {
+                    done.complete();
+                } else {
+                    next[0].run();
+                }
+            });
+        };
+
+        if (count == 0) {
+            done.complete();
+        }
+        for (int i = 0; i < Math.min(concurrency, count); i++) {
+            next[0].run();
+        }
+        return done.future();
+    }
+
+    // Run the schedule for the given time, then wait for the requests still outstanding
+    public Future<Void> run(long durationMillis) {
+        Promise<Void> done = Promise.promise();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        long[] sent = {0};
+
+        vertx.setPeriodic(1, timer -> {
+            long now = System.nanoTime();
+
+            // Catch up with every request that was due by now, each with its own intended start
+            long intended = start + (long) (sent[0] * intervalNanos);
+            while (intended <= now && intended < end) {
+                send(pickOp(), intended, true);
+                sent[0]++;
+                intended = start + (long) (sent[0] * intervalNanos);
+            }
+
+            if (intended >= end) {
+                vertx.cancelTimer(timer);
+                awaitOutstanding(done);
+            }
+        });
+        return done.future();
+    }
+
+    private void awaitOutstanding(Promise<Void> done) {
+        if (outstanding == 0) {
+            done.complete();
+        } else {
+            vertx.setTimer(10, id -> awaitOutstanding(done));
+        }
+    }
+
+    private Op pickOp() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Op, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        return Op.GET;
+    }
+
+    private Future<Void> send(Op op, long intendedNanos, boolean record) {
+        if (ids.isEmpty() && op != Op.LIST) {
+            op = Op.POST;
+        }
+
+        String id = null;
+        if (op == Op.GET || op == Op.PUT) {
+            id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+        } else if (op == Op.DELETE) {
+            // Taken out now, so it is not deleted twice
+            int index = ThreadLocalRandom.current().nextInt(ids.size());
+            id = ids.get(index);
+            ids.set(index, ids.get(ids.size() - 1));
+            ids.remove(ids.size() - 1);
+        }
+
+        HttpMethod method;
+        String uri;
+        Buffer body = null;
+        switch (op) {
+            case LIST:
+                method = HttpMethod.GET;
+                uri = "/api/v1/products?limit=50";
+                break;
+            case POST:
+                method = HttpMethod.POST;
+                uri = "/api/v1/products";
+                long number = nextNumber++;
+                body = new JsonObject()
+                        .put("number", "L-" + number)
+                        .put("description", "Load test product number " + number + " with a reasonably long description")
+                        .toBuffer();
+                break;
+            case PUT:
+                method = HttpMethod.PUT;
+                uri = "/api/v1/products/" + id;
+                body = new JsonObject().put("description", "Updated by the load test").toBuffer();
+                break;
+            case DELETE:
+                method = HttpMethod.DELETE;
+                uri = "/api/v1/products/" + id;
+                break;
+            default:
+                method = HttpMethod.GET;
+                uri = "/api/v1/products/" + id;
+        }
+
+        Op sentOp = op;
+        Buffer sentBody = body;
+        long sendNanos = System.nanoTime();
+        outstanding++;
+
+        return client.request(method, uri)
+                .compose(request -> {
+                    request.putHeader("AuthToken", authToken);
+                    return sentBody != null ? request.send(sentBody) : request.send();
+                })
+                .compose(response -> response.body().map(responseBody -> {
+                    if (sentOp == Op.POST && response.statusCode() == 201) {
+                        ids.add(new JsonObject(responseBody).getString("id"));
+                    }
+                    return response.statusCode();
+                }))
+                .transform(asyncResult -> {
+                    outstanding--;
+                    if (record) {
+                        long now = System.nanoTime();
+                        stats.get(sentOp).record(now - intendedNanos,
+                                                    now - sendNanos,
+                                                    asyncResult.succeeded() ? asyncResult.result() : 0);
+                    }
+                    return Future.succeededFuture();
+                });
+    }
+
+    // Latencies of one operation, in nanoseconds
+    public static class Stats {
+        // Auto resizing, so a pathological stall is recorded rather than dropped
+        final Histogram corrected = new Histogram(3);
+        final Histogram uncorrected = new Histogram(3);
+        long failures = 0;
+        long non2xx = 0;
+
+        // A status of 0 means the request failed without a response
+        void record(long correctedNanos, long uncorrectedNanos, int status) {
+            corrected.recordValue(correctedNanos);
+            uncorrected.recordValue(uncorrectedNanos);
+            if (status == 0 || status >= 500) {
+                failures++;
+            } else if (status >= 300) {
+                non2xx++;
+            }
+        }
+    }
+}
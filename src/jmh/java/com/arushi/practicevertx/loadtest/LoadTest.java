@@ -0,0 +1,205 @@
+package com.arushi.practicevertx.loadtest;
+
+import com.arushi.practicevertx.APIVerticle;
+import com.arushi.practicevertx.MongoVerticle;
+import com.arushi.practicevertx.benchmarks.StubMongoService;
+import io.vertx.config.ConfigRetriever;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.json.JsonObject;
+import org.HdrHistogram.Histogram;
+
+import java.net.ServerSocket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Boots APIVerticle in process, in front of either an in-memory Mongo service with injected latency
+// ("backend=stub") or the real MongoVerticle, configured from conf/config.json, on MongoDB ("backend=mongo")
+// or on its memory mapped store ("backend=mapped"),
+// drives an open model request mix at it from a separate Vert.x instance, and prints throughput
+// and latency percentiles.
+//
+// mvn -Pjmh compile exec:java -Dexec.mainClass=com.arushi.practicevertx.loadtest.LoadTest \
+//     -Dexec.args="rate=2000 duration=30 mix=get=70,list=10,post=10,put=5,delete=5"
+public class LoadTest {
+
+    private static final JsonObject DEFAULTS = new JsonObject()
+            .put("backend", "stub")
+            .put("rate", 1000)
+            .put("warmup", 10)
+            .put("duration", 30)
+            .put("connections", 64)
+            .put("seed", 1000)
+            .put("mix", "get=70,list=10,post=10,put=5,delete=5")
+            .put("stub.latencyMs", 2)
+            .put("stub.jitterMs", 3)
+            .put("http.instances", 0)
+            .put("mongodb.instances", 0);
+
+    public static void main(String[] args) throws Exception {
+        JsonObject options = DEFAULTS.copy();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Arguments are key=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        Vertx serverVertx = Vertx.vertx();
+        Vertx clientVertx = Vertx.vertx();
+        try {
+            run(serverVertx, clientVertx, options);
+        } finally {
+            await(clientVertx.close());
+            await(serverVertx.close());
+        }
+    }
+
+    private static void run(Vertx serverVertx, Vertx clientVertx, JsonObject options) throws Exception {
+        JsonObject config = await(ConfigRetriever.create(serverVertx).getConfig()).copy();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        config.put("http.port", port)
+                .put("http.instances", intOption(options, "http.instances"))
+                .put("mongodb.instances", intOption(options, "mongodb.instances"));
+        int httpInstances = instances(config.getInteger("http.instances"));
+        int mongoInstances = instances(config.getInteger("mongodb.instances"));
+
+        String backend = options.getString("backend");
+        if ("stub".equals(backend)) {
+            new StubMongoService(0)
+                    .withLatency(intOption(options, "stub.latencyMs"), intOption(options, "stub.jitterMs"))
+                    .register(serverVertx);
+        } else if ("mongo".equals(backend) || "mapped".equals(backend)) {
+            config.put("store.type", backend);
+            await(serverVertx.deployVerticle(MongoVerticle.class.getName(),
+                                                new DeploymentOptions().setConfig(config).setInstances(mongoInstances)));
+        } else {
+            throw new IllegalArgumentException("backend must be stub, mongo or mapped, got " + backend);
+        }
+        await(serverVertx.deployVerticle(APIVerticle.class.getName(),
+                                            new DeploymentOptions().setConfig(config).setInstances(httpInstances)));
+
+        int connections = intOption(options, "connections");
+        HttpClient client = clientVertx.createHttpClient(new HttpClientOptions()
+                                                            .setDefaultPort(port)
+                                                            .setKeepAlive(true),
+                                                            new PoolOptions().setHttp1MaxSize(connections));
+
+        double rate = Double.parseDouble(String.valueOf(options.getValue("rate")));
+        Map<LoadGenerator.Op, Integer> mix = parseMix(options.getString("mix"));
+        CompletableFuture<LoadGenerator> created = new CompletableFuture<>();
+        // Everything the generator does happens on one client context
+        clientVertx.runOnContext(v -> created.complete(new LoadGenerator(clientVertx, client, "123", rate, mix)));
+        LoadGenerator generator = created.get();
+
+        System.out.println("Load test : backend=" + backend + ", rate=" + rate + "/s, mix=" + mix
+                + ", connections=" + connections + ", http.instances=" + httpInstances
+                + ("stub".equals(backend) ? "" : ", mongodb.instances=" + mongoInstances));
+
+        int seed = intOption(options, "seed");
+        System.out.println("Seeding " + seed + " products");
+        await(onContext(clientVertx, () -> generator.seed(seed, connections)));
+
+        int warmup = intOption(options, "warmup");
+        System.out.println("Warming up for " + warmup + " s");
+        await(onContext(clientVertx, () -> generator.run(TimeUnit.SECONDS.toMillis(warmup))));
+
+        int duration = intOption(options, "duration");
+        System.out.println("Measuring for " + duration + " s");
+        await(onContext(clientVertx, () -> {
+            generator.resetStats();
+            return generator.run(TimeUnit.SECONDS.toMillis(duration));
+        }));
+
+        report(generator.stats(), duration);
+    }
+
+    private static void report(Map<LoadGenerator.Op, LoadGenerator.Stats> stats, int durationSeconds) {
+        System.out.println();
+        System.out.println("Latency in ms from the intended start (corrected for coordinated omission),"
+                + " p99 from the actual send in the last column");
+        System.out.printf("%-7s %9s %9s %7s %7s %9s %9s %9s %9s %9s %12s%n",
+                            "op", "count", "req/s", "fail", "non2xx", "p50", "p90", "p99", "p99.9", "max", "p99 (send)");
+
+        Histogram allCorrected = new Histogram(3);
+        Histogram allUncorrected = new Histogram(3);
+        long allFailures = 0;
+        long allNon2xx = 0;
+        for (Map.Entry<LoadGenerator.Op, LoadGenerator.Stats> entry : stats.entrySet()) {
+            LoadGenerator.Stats opStats = entry.getValue();
+            if (opStats.corrected.getTotalCount() == 0) {
+                continue;
+            }
+            printRow(entry.getKey().name(), opStats.corrected, opStats.uncorrected, opStats.failures, opStats.non2xx, durationSeconds);
+            allCorrected.add(opStats.corrected);
+            allUncorrected.add(opStats.uncorrected);
+            allFailures += opStats.failures;
+            allNon2xx += opStats.non2xx;
+        }
+        printRow("ALL", allCorrected, allUncorrected, allFailures, allNon2xx, durationSeconds);
+    }
+
+    private static void printRow(String name, Histogram corrected, Histogram uncorrected,
+                                 long failures, long non2xx, int durationSeconds) {
+        System.out.printf("%-7s %9d %9.1f %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %12.2f%n",
+                            name,
+                            corrected.getTotalCount(),
+                            corrected.getTotalCount() / (double) durationSeconds,
+                            failures,
+                            non2xx,
+                            millis(corrected.getValueAtPercentile(50)),
+                            millis(corrected.getValueAtPercentile(90)),
+                            millis(corrected.getValueAtPercentile(99)),
+                            millis(corrected.getValueAtPercentile(99.9)),
+                            millis(corrected.getMaxValue()),
+                            millis(uncorrected.getValueAtPercentile(99)));
+    }
+
+    // "get=70,list=10" into weights per operation, in the order given
+    private static Map<LoadGenerator.Op, Integer> parseMix(String mix) {
+        Map<LoadGenerator.Op, Integer> weights = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] keyValue = part.trim().split("=");
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("mix is op=weight,..., got " + mix);
+            }
+            weights.put(LoadGenerator.Op.valueOf(keyValue[0].trim().toUpperCase()), Integer.parseInt(keyValue[1].trim()));
+        }
+        return weights;
+    }
+
+    private static int intOption(JsonObject options, String key) {
+        return Integer.parseInt(String.valueOf(options.getValue(key)));
+    }
+
+    // Same rule as the verticles' deployment options : 0 means one per core
+    private static int instances(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static <T> Future<T> onContext(Vertx vertx, Supplier<Future<T>> action) {
+        Promise<T> promise = Promise.promise();
+        vertx.runOnContext(v -> action.get().onComplete(promise));
+        return promise.future();
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get();
+    }
+}
@@ -1,77 +1,156 @@
 package com.arushi.practicevertx;
 
+import com.arushi.practicevertx.metrics.HttpMetrics;
+import com.arushi.practicevertx.metrics.Metrics;
+import com.arushi.practicevertx.resources.HomePageTemplate;
 import com.arushi.practicevertx.resources.ProductResources;
-import io.vertx.config.ConfigRetriever;
+import com.arushi.practicevertx.resources.Readiness;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.DeploymentOptions;
-import io.vertx.core.Vertx;
-import io.vertx.core.VertxOptions;
+import io.vertx.core.Promise;
 import io.vertx.core.http.Cookie;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.impl.logging.Logger;
 import io.vertx.core.impl.logging.LoggerFactory;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.Scanner;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class APIVerticle extends AbstractVerticle {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(APIVerticle.class);
+    private static final AtomicBoolean OPTIONS_LOGGED = new AtomicBoolean();
+    private static final String HEALTH_UP = "{\"status\":\"UP\"}";
+    private static final String HEALTH_DOWN = "{\"status\":\"DOWN\"}";
+    private int compressionMinSize = 0;
+    private ProductResources productResources = null;
+    // An API only node, see Launcher
     public static void main(String[] args) {
-
-        deployClusteredVerticle();
+        Launcher.launch(EnumSet.of(Launcher.Role.API));
     }
 
+    // One instance per core unless http.instances is above 0, so every event loop serves HTTP requests
+    static DeploymentOptions deploymentOptions(JsonObject configJson) {
+        int instances = configJson.getInteger("http.instances", 0);
+        return new DeploymentOptions()
+                .setConfig(configJson)
+                .setInstances(instances > 0 ? instances : Runtime.getRuntime().availableProcessors());
+    }
 
-    private static void deployClusteredVerticle() {
-        // Cluster
-        VertxOptions vertxOptions = new VertxOptions();
-
-        Vertx.clusteredVertx(vertxOptions, results -> {
-            if(results.succeeded()) {
-
-                Vertx vertx = results.result();
-
-                // Use config/config.json from resources/classpath
-                ConfigRetriever configRetriever = ConfigRetriever.create(vertx);
-                configRetriever.getConfig( config -> {
-                            if(config.succeeded()) {
-                                JsonObject configJson = config.result();
-//                System.out.println(configJson.encodePrettily());
-
-                                DeploymentOptions options = new DeploymentOptions().setConfig(configJson);
-                                vertx.deployVerticle(new APIVerticle(), options);
-                            }
-                        }
+    // HTTP server options from the http.* config keys, Vert.x defaults when a key is missing
+    static HttpServerOptions httpServerOptions(JsonObject configJson) {
+        HttpServerOptions options = new HttpServerOptions()
+                // h2c : HTTP/2 over plain TCP, by upgrade or with prior knowledge, many requests multiplexed per connection
+                .setHttp2ClearTextEnabled(configJson.getBoolean("http.h2c", HttpServerOptions.DEFAULT_HTTP2_CLEAR_TEXT_ENABLED))
+                .setInitialSettings(new Http2Settings()
+                        .setMaxConcurrentStreams(configJson.getLong("http.http2.maxConcurrentStreams",
+                                                                    HttpServerOptions.DEFAULT_INITIAL_SETTINGS_MAX_CONCURRENT_STREAMS)))
+                .setHttp2ConnectionWindowSize(configJson.getInteger("http.http2.connectionWindowSize",
+                                                                    HttpServerOptions.DEFAULT_HTTP2_CONNECTION_WINDOW_SIZE))
+                .setCompressionSupported(configJson.getBoolean("http.compression.enabled", true))
+                .setCompressionLevel(configJson.getInteger("http.compression.level", HttpServerOptions.DEFAULT_COMPRESSION_LEVEL))
+                .setTcpNoDelay(configJson.getBoolean("http.tcpNoDelay", true))
+                // TCP_FASTOPEN and SO_REUSEPORT need the native transport, Vert.x ignores them on NIO
+                .setTcpFastOpen(configJson.getBoolean("http.tcpFastOpen", false))
+                .setReusePort(configJson.getBoolean("http.reusePort", false))
+                .setIdleTimeout(configJson.getInteger("http.idleTimeoutSeconds", 0))
+                .setIdleTimeoutUnit(TimeUnit.SECONDS);
+
+        int acceptBacklog = configJson.getInteger("http.acceptBacklog", -1);
+        if (acceptBacklog > 0) {
+            options.setAcceptBacklog(acceptBacklog);
+        }
+        return options;
+    }
 
-                );
-                System.out.println("Config is read");
-            }
-        });
+    // Log once per process what the server options amount to on this Vert.x instance
+    private void logServerOptions(HttpServerOptions options) {
+        if (!OPTIONS_LOGGED.compareAndSet(false, true)) {
+            return;
+        }
 
+        boolean nativeTransport = vertx.isNativeTransportEnabled();
+        LOGGER.info("HTTP server options : transport=" + (nativeTransport ? "native" : "nio")
+                + ", h2c=" + options.isHttp2ClearTextEnabled()
+                + ", http2.maxConcurrentStreams=" + options.getInitialSettings().getMaxConcurrentStreams()
+                + ", http2.connectionWindowSize=" + options.getHttp2ConnectionWindowSize()
+                + ", compression=" + (options.isCompressionSupported()
+                                        ? "level " + options.getCompressionLevel() + " from " + compressionMinSize + " bytes"
+                                        : "off")
+                + ", tcpNoDelay=" + options.isTcpNoDelay()
+                + ", tcpFastOpen=" + (options.isTcpFastOpen() && nativeTransport)
+                + ", reusePort=" + (options.isReusePort() && nativeTransport)
+                + ", idleTimeout=" + options.getIdleTimeout() + "s"
+                + ", acceptBacklog=" + options.getAcceptBacklog()
+                + ", instances=" + deploymentOptions(config()).getInstances());
+
+        if (!nativeTransport && (options.isTcpFastOpen() || options.isReusePort())) {
+            LOGGER.warn("tcpFastOpen and reusePort are ignored without the native transport : "
+                    + vertx.unavailableNativeTransportCause());
+        }
     }
 
     @Override
-    public void start() throws Exception {
+    public void start(Promise<Void> startPromise) throws Exception {
         LOGGER.info("APIVerticle started");
+        compressionMinSize = config().getInteger("http.compression.minSize", 0);
+
+        // Compile the home page once, before accepting requests
+        HomePageTemplate.load(vertx,
+                                config().getString("home.template", "webroot/home.html"),
+                                config().getLong("home.reloadIntervalMs", 0L))
+                .onSuccess(homePage -> startHttpServer(homePage, startPromise))
+                .onFailure(startPromise::fail);
+    }
 
+    private void startHttpServer(HomePageTemplate homePage, Promise<Void> startPromise) {
         Router router = Router.router(vertx);
 
         // Create instance of ProductResources
-        ProductResources productResources = new ProductResources();
+        productResources = new ProductResources(config());
+        Readiness.register(productResources);
+
+        router.route().handler(HttpMetrics.inFlight());
+        if (compressionMinSize > 0) {
+            router.route().handler(this::skipCompressionOfSmallResponses);
+        }
+
+        // Liveness : the event loop answers. Readiness : every API instance of the process is warm and
+        // none has its Mongo service circuit open, whichever instance answers the probe.
+        router.get("/health/live")
+                .handler(routingContext -> routingContext.response()
+                        .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                        .end(HEALTH_UP));
+        router.get("/health/ready")
+                .handler(routingContext -> {
+                    boolean ready = Readiness.isReady();
+                    routingContext.response()
+                            .setStatusCode(ready ? 200 : 503)
+                            .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                            .end(ready ? HEALTH_UP : HEALTH_DOWN);
+                });
+
+        // Latency histograms and counters in the Prometheus text format
+        router.get("/metrics")
+                .handler(routingContext -> routingContext.response()
+                        .putHeader("content-type", "text/plain; version=0.0.4")
+                        .end(Metrics.scrape()));
 
         // Map subrouter for Products
         router.route("/api/*").subRouter(productResources.getAPISubRouter(vertx));
 
         // Default if no routes matched
         router.route()
+                        .handler(HttpMetrics.track("ANY", "/"))
                         .handler(routingContext -> {
-                            ClassLoader classLoader = getClass().getClassLoader();
-                            File file = new File(classLoader.getResource("webroot/home.html").getFile());
-
                             // Get "name" cookie
                             Cookie nameCookie =  routingContext.request().getCookie("name");
                             String name = "Unknown";
@@ -86,52 +165,58 @@ public class APIVerticle extends AbstractVerticle {
                                 routingContext.response().addCookie(nameCookie);
                             }
 
-                            String mappedHtml = "";
-                            try{
-                                StringBuilder builder = new StringBuilder("");
-                                Scanner scanner = new Scanner(file);
-
-                                while(scanner.hasNextLine()) {
-                                    String line = scanner.nextLine();
-                                    builder.append(line).append("\n");
-                                }
-
-                                scanner.close();
-
-                                mappedHtml = builder.toString();
-                                mappedHtml = replaceAllTokens(mappedHtml, "{name}", name);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-
-                            routingContext.response().putHeader("content-type","text/html").end(mappedHtml);
+                            routingContext.response()
+                                    .putHeader("content-type","text/html")
+                                    .end(homePage.render(Map.of("name", name)));
                         });
                 //.handler(StaticHandler.create().setCachingEnabled(false));
 
-        vertx.createHttpServer(new HttpServerOptions().setCompressionSupported(true))
+        HttpServerOptions serverOptions = httpServerOptions(config());
+        logServerOptions(serverOptions);
+
+        // The port is only opened once there is a Mongo service to answer, and the cache is warm
+        long warmupStartTime = System.nanoTime();
+        productResources.warmUp(config().getLong("startup.warmupTimeoutMs", 30000L))
+                .onComplete(warmup -> {
+                    StartupLog.phase("API instance warm", warmupStartTime);
+                    listen(router, serverOptions, startPromise);
+                });
+    }
+
+    private void listen(Router router, HttpServerOptions serverOptions, Promise<Void> startPromise) {
+        vertx.createHttpServer(serverOptions)
                 .requestHandler(router)
                 .listen(config().getInteger("http.port"),
                             httpServerAsyncResult -> {
                                     // Log whether server able to start at given port
                                     if(httpServerAsyncResult.succeeded()) {
                                         LOGGER.info("HTTP server running on port " + config().getInteger("http.port"));
+                                        startPromise.complete();
                                     } else {
                                         LOGGER.error("Could not start an HTTP server ", httpServerAsyncResult.cause());
+                                        startPromise.fail(httpServerAsyncResult.cause());
                                     }
                             });
     }
 
-
-    private String replaceAllTokens(String mappedHtml, String token, String replaceWith) {
-
-        while(mappedHtml.contains(token)) {
-            mappedHtml = mappedHtml.replace(token, replaceWith);
-        }
-        return  mappedHtml;
+    // Compressing a few hundred bytes costs more CPU than it saves on the wire,
+    // so responses below http.compression.minSize go out as they are
+    private void skipCompressionOfSmallResponses(RoutingContext routingContext) {
+        HttpServerResponse response = routingContext.response();
+        routingContext.addHeadersEndHandler(v -> {
+            String contentLength = response.headers().get(HttpHeaders.CONTENT_LENGTH);
+            if (contentLength != null && Long.parseLong(contentLength) < compressionMinSize) {
+                response.putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+            }
+        });
+        routingContext.next();
     }
 
     @Override
     public void stop() throws Exception {
+        if (productResources != null) {
+            Readiness.unregister(productResources);
+        }
         LOGGER.info("APIVerticle stopped");
     }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package com.arushi.practicevertx;
+
+import io.vertx.config.ConfigRetriever;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// Starts a node running the Mongo service, the API, or both on one Vert.x instance.
+// The roles come from the arguments ("api", "mongo"), else from launcher.roles, and default to both,
+// so API commands are handled in process (see LocalFirstRouter).
+// The node joins the Hazelcast cluster unless cluster.enabled is false, which skips Hazelcast altogether
+// and suits a single node running both roles.
+// Verticles are deployed in parallel : the Mongo service takes commands once its store is warm, and the API
+// only listens once a Mongo service answered it (see ProductResources.warmUp), so the order does not matter.
+public class Launcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Launcher.class);
+
+    public enum Role { API, MONGO }
+
+    public static void main(String[] args) {
+        Set<Role> roles = EnumSet.noneOf(Role.class);
+        for (String arg : args) {
+            roles.add(Role.valueOf(arg.toUpperCase()));
+        }
+        launch(roles);
+    }
+
+    // Roles empty means those of the config
+    static void launch(Set<Role> roles) {
+        long startTime = System.nanoTime();
+
+        // The transport is chosen when Vert.x is created, so the config is read first with a throwaway instance.
+        // It is waited for on this thread, so the node's Vert.x is not created from a Vert.x context.
+        Vertx bootstrap = Vertx.vertx();
+        JsonObject configJson;
+        try {
+            // Use config/config.json from resources/classpath
+            configJson = ConfigRetriever.create(bootstrap).getConfig().toCompletionStage().toCompletableFuture().join();
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not read the config", e);
+            return;
+        } finally {
+            bootstrap.close();
+        }
+        StartupLog.phase("config read", startTime);
+
+        Set<Role> nodeRoles = roles.isEmpty() ? configuredRoles(configJson) : roles;
+        boolean clustered = configJson.getBoolean("cluster.enabled", true);
+        VertxOptions vertxOptions = new VertxOptions()
+                .setPreferNativeTransport(configJson.getBoolean("vertx.preferNativeTransport", true));
+
+        long vertxStartTime = System.nanoTime();
+        Future<Vertx> started = clustered
+                ? Vertx.clusteredVertx(vertxOptions)
+                : Future.succeededFuture(Vertx.vertx(vertxOptions));
+
+        started.compose(vertx -> {
+                    StartupLog.phase(clustered ? "cluster joined" : "Vert.x started", vertxStartTime);
+                    return deploy(vertx, configJson, nodeRoles);
+                })
+                .onSuccess(v -> StartupLog.phase("node " + nodeRoles + " started", startTime))
+                .onFailure(cause -> LOGGER.error("Could not start node " + nodeRoles, cause));
+    }
+
+    private static Future<Void> deploy(Vertx vertx, JsonObject configJson, Set<Role> roles) {
+        List<Future<String>> deployments = new ArrayList<>();
+        if (roles.contains(Role.MONGO)) {
+            long deployStartTime = System.nanoTime();
+            deployments.add(vertx.deployVerticle(MongoVerticle::new, MongoVerticle.deploymentOptions(configJson))
+                                    .onSuccess(id -> StartupLog.phase("Mongo service deployed", deployStartTime)));
+        }
+        if (roles.contains(Role.API)) {
+            long deployStartTime = System.nanoTime();
+            deployments.add(vertx.deployVerticle(APIVerticle::new, APIVerticle.deploymentOptions(configJson))
+                                    .onSuccess(id -> StartupLog.phase("API deployed", deployStartTime)));
+        }
+        return Future.all(deployments).mapEmpty();
+    }
+
+    private static Set<Role> configuredRoles(JsonObject configJson) {
+        JsonArray configured = configJson.getJsonArray("launcher.roles", new JsonArray().add("api").add("mongo"));
+        Set<Role> roles = EnumSet.noneOf(Role.class);
+        for (int i = 0; i < configured.size(); i++) {
+            roles.add(Role.valueOf(configured.getString(i).toUpperCase()));
+        }
+        return roles;
+    }
+}
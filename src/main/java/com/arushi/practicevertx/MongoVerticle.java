@@ -1,7 +1,10 @@
 package com.arushi.practicevertx;
 
+import com.arushi.practicevertx.database.MappedProductStore;
 import com.arushi.practicevertx.database.MongoManager;
-import io.vertx.config.ConfigRetriever;
+import com.arushi.practicevertx.database.MongoProductStore;
+import com.arushi.practicevertx.database.ProductIndexes;
+import com.arushi.practicevertx.database.ProductStore;
 import io.vertx.core.*;
 import io.vertx.core.impl.logging.Logger;
 import io.vertx.core.impl.logging.LoggerFactory;
@@ -9,97 +12,77 @@ import io.vertx.core.json.JsonObject;
 
 import io.vertx.ext.mongo.MongoClient;
 
+import java.util.EnumSet;
+
 
 public class MongoVerticle extends AbstractVerticle {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoVerticle.class);
-    public static MongoClient mongoClient = null;
+    private MongoClient mongoClient = null;
+    private MongoManager mongoManager = null;
 
     private final String myServiceName = "com.arushi.myservice";
+    // A Mongo service only node, see Launcher
     public static void main(String[] args) {
-
-        // Code to deploy cluster -->
-        deployClusteredVerticle();
-
-        // Non-clustered -->
-        //deployNonClusteredVerticle();
-
+        Launcher.launch(EnumSet.of(Launcher.Role.MONGO));
     }
 
-    private static void deployClusteredVerticle() {
-        // Cluster
-        VertxOptions vertxOptions = new VertxOptions();
-
-        Vertx.clusteredVertx(vertxOptions, results -> {
-            if(results.succeeded()) {
-
-                Vertx vertx = results.result();
-
-                // Use config/config.json from resources/classpath to get DB connection details
-                ConfigRetriever configRetriever = ConfigRetriever.create(vertx);
-
-                configRetriever.getConfig( config -> {
-                            if(config.succeeded()) {
-                                JsonObject configJson = config.result();
-                                //                      System.out.println(configJson.encodePrettily());
-
-                                DeploymentOptions options = new DeploymentOptions().setConfig(configJson);
-                                vertx.deployVerticle(new MongoVerticle(), options);
-                            }
-                        }
-
-                );
-
-            }
-        });
-
-    }
-
-    private static void deployNonClusteredVerticle() {
-        Vertx vertx = Vertx.vertx();
-
-        // Use config/config.json from resources/classpath to get DB connection details
-        ConfigRetriever configRetriever = ConfigRetriever.create(vertx);
-
-        configRetriever.getConfig( config -> {
-                    if(config.succeeded()) {
-                        JsonObject configJson = config.result();
-                        //                      System.out.println(configJson.encodePrettily());
-
-                        DeploymentOptions options = new DeploymentOptions().setConfig(configJson);
-                        vertx.deployVerticle(new MongoVerticle(), options);
-                    }
-                }
-
-        );
-
+    // One instance per core unless mongodb.instances is above 0, so every event loop consumes Mongo service commands
+    static DeploymentOptions deploymentOptions(JsonObject configJson) {
+        int instances = configJson.getInteger("mongodb.instances", 0);
+        return new DeploymentOptions()
+                .setConfig(configJson)
+                .setInstances(instances > 0 ? instances : Runtime.getRuntime().availableProcessors());
     }
 
-
     @Override
-    public void start() throws Exception {
+    public void start(Promise<Void> startPromise) throws Exception {
         LOGGER.info("MongoVerticle started");
 
 
-        /* Mongo DB connection */
-        JsonObject dbConfig = new JsonObject();
-        dbConfig.put("connection_string", "mongodb://" + config().getString("mongodb.host")
-                + ":" + config().getInteger("mongodb.port") + "/" + config().getString("mongodb.databasename") );
-//        dbConfig.put("username", config().getString("mongodb.username"));
-//        dbConfig.put("password", config().getString("mongodb.password"));
-//        dbConfig.put("authSource", config().getString("mongodb.authSource"));
-        dbConfig.put("useObjectId",config().getBoolean("mongodb.useObjectId"));
-
-        // Create Mongo Client that shares a pool between different client instances
-        mongoClient = MongoClient.createShared(vertx, dbConfig);
-        MongoManager mongoManager = new MongoManager(mongoClient);
-
-        mongoManager.registerConsumer(vertx);
+        // "mongo" (the default) keeps products in MongoDB, "mapped" in a memory mapped file of this process
+        ProductStore store;
+        if ("mapped".equals(config().getString("store.type", "mongo"))) {
+            store = new MappedProductStore(vertx, config());
+        } else {
+            /* Mongo DB connection */
+            JsonObject dbConfig = new JsonObject();
+            dbConfig.put("connection_string", "mongodb://" + config().getString("mongodb.host")
+                    + ":" + config().getInteger("mongodb.port") + "/" + config().getString("mongodb.databasename") );
+//            dbConfig.put("username", config().getString("mongodb.username"));
+//            dbConfig.put("password", config().getString("mongodb.password"));
+//            dbConfig.put("authSource", config().getString("mongodb.authSource"));
+            dbConfig.put("useObjectId",config().getBoolean("mongodb.useObjectId"));
+
+            // Create Mongo Client that shares a pool between different client instances
+            // The shared pool is reference counted, so closing it in one instance's stop() leaves it open for the others
+            mongoClient = MongoClient.createShared(vertx, dbConfig);
+            store = new MongoProductStore(vertx, mongoClient, config());
+
+            // Built in the background, commands are served meanwhile
+            ProductIndexes.ensureOnce(vertx, mongoClient, config());
+        }
+        mongoManager = new MongoManager(store, config());
         registerMyServiceConsumer();
 
-        // Code to test sending message to service
-        vertx.setTimer(5000, handler -> {
-            sendTestEvent();
+        // Code to test sending message to service, off unless asked for
+        if (config().getBoolean("demo.testEvent", false)) {
+            vertx.setTimer(5000, handler -> {
+                sendTestEvent();
+            });
+        }
+
+        // Commands are only taken once the store is warm, API instances wait for a consumer meanwhile.
+        // A store that could not warm up still takes them, and fails those it cannot serve.
+        long warmupStartTime = System.nanoTime();
+        store.warmUp().onComplete(warmup -> {
+            if (warmup.succeeded()) {
+                StartupLog.phase("Mongo service store warm", warmupStartTime);
+            } else {
+                LOGGER.error("Could not warm up the product store", warmup.cause());
+            }
+            mongoManager.registerConsumer(vertx);
+            startPromise.complete();
         });
     }
 
@@ -151,7 +134,14 @@ public class MongoVerticle extends AbstractVerticle {
     @Override
     public void stop() throws Exception {
         LOGGER.info("MongoVerticle stopped");
-        mongoClient.close();
-        mongoClient = null;
+        // Null when start() failed before creating it, e.g. the store could not be opened
+        if (mongoManager != null) {
+            mongoManager.stop();
+            mongoManager = null;
+        }
+        if (mongoClient != null) {
+            mongoClient.close();
+            mongoClient = null;
+        }
     }
 }
@@ -0,0 +1,24 @@
+package com.arushi.practicevertx;
+
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+// Logs each startup phase with how long it took and how long after the JVM started it ended,
+// to see where the start time of a node goes
+public final class StartupLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupLog.class);
+    private static final long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    private StartupLog() {
+    }
+
+    // A phase that started at startNanos, from System.nanoTime(), ended now
+    public static void phase(String phase, long startNanos) {
+        LOGGER.info("Startup : " + phase + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+                + " ms, " + (System.currentTimeMillis() - JVM_START) + " ms since the JVM started");
+    }
+}
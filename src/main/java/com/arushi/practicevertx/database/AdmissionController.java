@@ -0,0 +1,97 @@
+package com.arushi.practicevertx.database;
+
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.json.JsonObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounds the number of in-flight commands of each type with an AIMD limit.
+// The limit grows by about one per round trip while Mongo answers within the target latency,
+// and shrinks by a fixed factor, at most once per target latency period, when it does not or a command fails.
+// Used from a single event loop, so it is not synchronized.
+// Limits and in-flight commands are exported per command, summed over the Mongo service instances of the process.
+public class AdmissionController {
+
+    private static final Map<ProductCommand, LongAdder> LIMITS = new EnumMap<>(ProductCommand.class);
+    private static final Map<ProductCommand, LongAdder> IN_FLIGHT = new EnumMap<>(ProductCommand.class);
+
+    static {
+        for (ProductCommand command : ProductCommand.values()) {
+            String labels = "command=\"" + command + "\"";
+            LIMITS.put(command, Metrics.gauge("mongo_admission_limit",
+                                                "Admission control limit of in-flight Mongo service commands", labels));
+            IN_FLIGHT.put(command, Metrics.gauge("mongo_admission_in_flight",
+                                                    "Mongo service commands admitted and not yet answered", labels));
+        }
+    }
+
+    private final boolean enabled;
+    private final double minLimit;
+    private final double maxLimit;
+    private final long targetLatencyNanos;
+    private final double backoffRatio;
+    private final Map<ProductCommand, Limit> limits = new EnumMap<>(ProductCommand.class);
+
+    public AdmissionController(JsonObject config) {
+        this.enabled = config.getBoolean("mongodb.admission.enabled", true);
+        this.minLimit = config.getInteger("mongodb.admission.minLimit", 4);
+        this.maxLimit = config.getInteger("mongodb.admission.maxLimit", 512);
+        this.targetLatencyNanos = config.getLong("mongodb.admission.targetLatencyMs", 100L) * 1_000_000;
+        this.backoffRatio = config.getDouble("mongodb.admission.backoffRatio", 0.9);
+
+        double initialLimit = config.getInteger("mongodb.admission.initialLimit", 64);
+        for (ProductCommand command : ProductCommand.values()) {
+            limits.put(command, new Limit(initialLimit));
+            LIMITS.get(command).add((int) initialLimit);
+        }
+    }
+
+    // Take a slot for the command, false if it should be rejected
+    public boolean tryAcquire(ProductCommand command) {
+        Limit limit = limits.get(command);
+        if (enabled && limit.inFlight >= (int) limit.limit) {
+            return false;
+        }
+
+        limit.inFlight++;
+        IN_FLIGHT.get(command).increment();
+        return true;
+    }
+
+    // Give the slot back and adjust the limit from the observed latency
+    public void release(ProductCommand command, long latencyNanos, boolean succeeded) {
+        Limit limit = limits.get(command);
+        limit.inFlight--;
+        IN_FLIGHT.get(command).decrement();
+
+        int previousLimit = (int) limit.limit;
+        long now = System.nanoTime();
+        if (succeeded && latencyNanos <= targetLatencyNanos) {
+            limit.limit = Math.min(maxLimit, limit.limit + 1 / limit.limit);
+        } else if (now - limit.lastDecrease > targetLatencyNanos) {
+            limit.limit = Math.max(minLimit, limit.limit * backoffRatio);
+            limit.lastDecrease = now;
+        }
+        if ((int) limit.limit != previousLimit) {
+            LIMITS.get(command).add((int) limit.limit - previousLimit);
+        }
+    }
+
+    // Take this instance's limits out of the exported ones, when its Mongo service instance is undeployed
+    public void close() {
+        limits.forEach((command, limit) -> LIMITS.get(command).add(-(int) limit.limit));
+    }
+
+    private static class Limit {
+        private double limit;
+        private int inFlight = 0;
+        private long lastDecrease = 0;
+
+        private Limit(double limit) {
+            this.limit = limit;
+        }
+    }
+}
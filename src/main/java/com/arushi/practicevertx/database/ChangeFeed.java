@@ -0,0 +1,264 @@
+package com.arushi.practicevertx.database;
+
+import com.mongodb.MongoCommandException;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.AsyncMap;
+import io.vertx.core.shareddata.Lock;
+import io.vertx.ext.mongo.MongoClient;
+
+// Watches the products collection with a single Mongo change stream for the whole cluster,
+// and publishes every change to the changes address. Mongo service instances compete for a
+// cluster wide lock : the one holding it watches, the others keep trying so one of them takes
+// over when the watcher goes away. Change streams need Mongo to run as a replica set.
+//
+// The watcher keeps the resume token of the last batch it read in a cluster wide map, and the one
+// taking over resumes the stream from there, so the changes made meanwhile are still published.
+// A batch published just before its watcher went away can be published again.
+// The stream is read with aggregate / getMore commands, the client's watch() cannot resume.
+// When there is no token to resume from, or Mongo no longer has its history, the watcher starts
+// from now and first publishes {"reset": true}, telling subscribers to reload.
+//
+// Published changes are {"id": resume token, "op": insert|update|replace|delete, "productId": ...,
+// "product": full product after the change, missing for a delete}
+public class ChangeFeed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeFeed.class);
+
+    private static final String LOCK_NAME = MongoManager.serviceName() + ".changes.watch";
+    private static final String MAP_NAME = MongoManager.serviceName() + ".changes";
+    private static final String RESUME_TOKEN_KEY = "resumeToken";
+    private static final String COLLECTION = "products";
+    private static final long LOCK_WAIT_MILLIS = 1000;
+    private static final int WATCH_BATCH_SIZE = 100;
+    // How long a getMore waits for changes before answering an empty batch
+    private static final long AWAIT_MILLIS = 1000;
+    // ChangeStreamFatalError and ChangeStreamHistoryLost : the token can not be resumed from
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    private final Vertx vertx;
+    private final MongoClient mongoClient;
+    private final String address;
+    private final long retryMillis;
+
+    private Lock lock = null;
+    private AsyncMap<String, String> resumeTokens = null;
+    private long cursorId = 0;
+    private String resumeToken = null;
+    private long retryTimer = -1;
+    private boolean stopped = false;
+
+    public ChangeFeed(Vertx vertx, MongoClient mongoClient, String address, long retryMillis) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.address = address;
+        this.retryMillis = retryMillis;
+    }
+
+    public void start() {
+        vertx.sharedData().getLockWithTimeout(LOCK_NAME, LOCK_WAIT_MILLIS, asyncResult -> {
+            if (stopped) {
+                if (asyncResult.succeeded()) {
+                    asyncResult.result().release();
+                }
+                return;
+            }
+
+            if (asyncResult.failed()) {
+                // Another instance is watching
+                retryLater();
+                return;
+            }
+
+            lock = asyncResult.result();
+            vertx.sharedData().<String, String>getAsyncMap(MAP_NAME)
+                    .compose(map -> {
+                        resumeTokens = map;
+                        return map.get(RESUME_TOKEN_KEY);
+                    })
+                    .onComplete(tokenResult -> {
+                        if (tokenResult.failed()) {
+                            failed("Could not read the product changes resume token", tokenResult.cause());
+                        } else {
+                            watch(tokenResult.result());
+                        }
+                    });
+        });
+    }
+
+    public void stop() {
+        stopped = true;
+        vertx.cancelTimer(retryTimer);
+        unwatch();
+    }
+
+    private void watch(String token) {
+        if (stopped) {
+            unwatch();
+            return;
+        }
+
+        JsonObject changeStream = new JsonObject().put("fullDocument", "updateLookup");
+        if (token != null) {
+            changeStream.put("resumeAfter", new JsonObject(token));
+        }
+        JsonObject aggregate = new JsonObject()
+                .put("aggregate", COLLECTION)
+                .put("pipeline", new JsonArray().add(new JsonObject().put("$changeStream", changeStream)))
+                .put("cursor", new JsonObject().put("batchSize", WATCH_BATCH_SIZE));
+
+        mongoClient.runCommand("aggregate", aggregate).onComplete(asyncResult -> {
+            if (asyncResult.failed()) {
+                if (token != null && !resumable(asyncResult.cause())) {
+                    LOGGER.warn("Product changes can not be resumed from the last token, watching from now", asyncResult.cause());
+                    watch(null);
+                } else {
+                    failed("Could not watch product changes", asyncResult.cause());
+                }
+                return;
+            }
+
+            JsonObject cursor = asyncResult.result().getJsonObject("cursor");
+            cursorId = cursor.getLong("id", 0L);
+            if (stopped) {
+                unwatch();
+                return;
+            }
+
+            if (token == null) {
+                // Whatever changed before now was not published
+                vertx.eventBus().publish(address, new JsonObject().put("reset", true));
+                LOGGER.info("Watching product changes for the cluster");
+            } else {
+                LOGGER.info("Watching product changes for the cluster, resumed after the last token");
+            }
+
+            resumeToken = token;
+            read(cursor, cursor.getJsonArray("firstBatch"));
+        });
+    }
+
+    // Publish a batch, keep its resume token, and ask for the next one
+    private void read(JsonObject cursor, JsonArray batch) {
+        if (stopped) {
+            return;
+        }
+
+        String lastToken = null;
+        for (int i = 0; i < batch.size(); i++) {
+            JsonObject change = batch.getJsonObject(i);
+            publish(change);
+            lastToken = change.getJsonObject("_id").encode();
+        }
+
+        // The post batch token moves on even when no products changed, so an idle stream still resumes
+        JsonObject postBatchToken = cursor.getJsonObject("postBatchResumeToken");
+        if (postBatchToken != null) {
+            lastToken = postBatchToken.encode();
+        }
+        Future<Void> saved = Future.succeededFuture();
+        if (lastToken != null && !lastToken.equals(resumeToken)) {
+            resumeToken = lastToken;
+            saved = resumeTokens.put(RESUME_TOKEN_KEY, lastToken);
+        }
+
+        if (cursorId == 0) {
+            failed("Product change stream ended", null);
+            return;
+        }
+
+        long id = cursorId;
+        saved.compose(v -> mongoClient.runCommand("getMore", new JsonObject()
+                        .put("getMore", id)
+                        .put("collection", COLLECTION)
+                        .put("batchSize", WATCH_BATCH_SIZE)
+                        .put("maxTimeMS", AWAIT_MILLIS)))
+                .onComplete(asyncResult -> {
+                    if (stopped) {
+                        return;
+                    }
+                    if (asyncResult.failed()) {
+                        failed("Product change stream failed", asyncResult.cause());
+                        return;
+                    }
+
+                    JsonObject next = asyncResult.result().getJsonObject("cursor");
+                    cursorId = next.getLong("id", 0L);
+                    read(next, next.getJsonArray("nextBatch"));
+                });
+    }
+
+    // Give the stream up, this or another instance takes it over after retryMillis and resumes it
+    private void failed(String message, Throwable cause) {
+        if (stopped) {
+            return;
+        }
+        if (cause != null) {
+            LOGGER.error(message, cause);
+        } else {
+            LOGGER.warn(message);
+        }
+        unwatch();
+        retryLater();
+    }
+
+    private void unwatch() {
+        if (cursorId != 0) {
+            mongoClient.runCommand("killCursors", new JsonObject()
+                    .put("killCursors", COLLECTION)
+                    .put("cursors", new JsonArray().add(cursorId)));
+            cursorId = 0;
+        }
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+    }
+
+    private void retryLater() {
+        if (!stopped) {
+            retryTimer = vertx.setTimer(retryMillis, id -> start());
+        }
+    }
+
+    private static boolean resumable(Throwable cause) {
+        if (cause instanceof MongoCommandException) {
+            int code = ((MongoCommandException) cause).getErrorCode();
+            return code != CHANGE_STREAM_FATAL_ERROR && code != CHANGE_STREAM_HISTORY_LOST;
+        }
+        return true;
+    }
+
+    private void publish(JsonObject change) {
+        JsonObject event = new JsonObject()
+                .put("id", change.getJsonObject("_id").getString("_data"))
+                .put("op", change.getString("operationType"))
+                .put("productId", idOf(change.getJsonObject("documentKey")));
+
+        JsonObject product = change.getJsonObject("fullDocument");
+        if (product != null) {
+            product.put("_id", idOf(product));
+            event.put("product", product);
+        }
+
+        vertx.eventBus().publish(address, event);
+    }
+
+    // Like batch cursors, commands hand back ObjectIds as {"$oid": ...}
+    private static String idOf(JsonObject document) {
+        if (document == null) {
+            return null;
+        }
+
+        Object id = document.getValue("_id");
+        if (id instanceof JsonObject && ((JsonObject) id).containsKey("$oid")) {
+            return ((JsonObject) id).getString("$oid");
+        }
+        return id == null ? null : String.valueOf(id);
+    }
+}
@@ -0,0 +1,117 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+// Pushes documents read from a Mongo cursor to an event bus address, one batch per message.
+// The cursor is paused while a batch is in flight and only resumed once the receiver
+// acknowledges it, so memory stays bounded by the batch size on both sides.
+public class CursorStreamer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CursorStreamer.class);
+
+    // Header describing what a stream message carries
+    public static final String STREAM_HEADER = "stream";
+    public static final String STREAM_CHUNK = "chunk";
+    public static final String STREAM_END = "end";
+    public static final String STREAM_ERROR = "error";
+
+    private final Vertx vertx;
+    private final ReadStream<JsonObject> cursor;
+    private final String address;
+    private final boolean ndjson;
+    private final int batchSize;
+
+    private Buffer batch = Buffer.buffer();
+    private int batchCount = 0;
+    private boolean inFlight = false;
+    private boolean ended = false;
+
+    public CursorStreamer(Vertx vertx, ReadStream<JsonObject> cursor, String address, boolean ndjson, int batchSize) {
+        this.vertx = vertx;
+        this.cursor = cursor;
+        this.address = address;
+        this.ndjson = ndjson;
+        this.batchSize = batchSize;
+    }
+
+    public void start() {
+        cursor.exceptionHandler(this::fail);
+        cursor.endHandler(v -> {
+            ended = true;
+            if (!inFlight) {
+                flush();
+            }
+        });
+        cursor.handler(this::append);
+    }
+
+    private void append(JsonObject product) {
+        // Batch cursors hand back ObjectIds as {"$oid": ...}, unlike find() which flattens them
+        Object id = product.getValue("_id");
+        if (id instanceof JsonObject && ((JsonObject) id).containsKey("$oid")) {
+            product.put("_id", ((JsonObject) id).getString("$oid"));
+        }
+
+        if (batchCount > 0 && !ndjson) {
+            batch.appendString(",");
+        }
+        batch.appendBuffer(product.toBuffer());
+        if (ndjson) {
+            batch.appendString("\n");
+        }
+
+        if (++batchCount >= batchSize) {
+            cursor.pause();
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batchCount == 0) {
+            if (ended) {
+                sendEnd();
+            }
+            return;
+        }
+
+        Buffer chunk = batch;
+        batch = Buffer.buffer();
+        batchCount = 0;
+        inFlight = true;
+
+        vertx.eventBus().request(address,
+                                    chunk,
+                                    new DeliveryOptions().addHeader(STREAM_HEADER, STREAM_CHUNK),
+                                    ack -> {
+                                        inFlight = false;
+
+                                        if (ack.failed()) {
+                                            // Receiver went away - stop reading from the cursor
+                                            LOGGER.warn("Stream to " + address + " aborted : " + ack.cause().getMessage());
+                                            cursor.endHandler(null);
+                                            cursor.handler(null);
+                                        } else if (ended) {
+                                            flush();
+                                        } else {
+                                            cursor.resume();
+                                        }
+                                    });
+    }
+
+    private void sendEnd() {
+        vertx.eventBus().send(address, Buffer.buffer(), new DeliveryOptions().addHeader(STREAM_HEADER, STREAM_END));
+    }
+
+    private void fail(Throwable cause) {
+        LOGGER.error("Cursor failed while streaming to " + address, cause);
+        vertx.eventBus().send(address,
+                                Buffer.buffer(String.valueOf(cause.getMessage())),
+                                new DeliveryOptions().addHeader(STREAM_HEADER, STREAM_ERROR));
+    }
+}
@@ -0,0 +1,151 @@
+package com.arushi.practicevertx.database;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.MongoClient;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects single inserts for a short time window, or until the batch is full,
+// and writes them to Mongo with one unordered bulk write.
+// Every caller still gets its own id back, or its own error if only that document was rejected.
+public class InsertBatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InsertBatcher.class);
+
+    private final Vertx vertx;
+    private final MongoClient mongoClient;
+    private final String collection;
+    private final int maxBatchSize;
+    private final long windowMillis;
+
+    private List<PendingInsert> pending = new ArrayList<>();
+    private long timerId = -1;
+
+    public InsertBatcher(Vertx vertx, MongoClient mongoClient, String collection, int maxBatchSize, long windowMillis) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.collection = collection;
+        this.maxBatchSize = maxBatchSize;
+        this.windowMillis = windowMillis;
+    }
+
+    // Queue a document, the future completes with its id once its batch has been written
+    public Future<String> add(JsonObject document) {
+        PendingInsert insert = new PendingInsert(document);
+        pending.add(insert);
+
+        if (pending.size() >= maxBatchSize) {
+            flush();
+        } else if (timerId == -1) {
+            timerId = vertx.setTimer(windowMillis, id -> {
+                timerId = -1;
+                flush();
+            });
+        }
+
+        return insert.promise.future();
+    }
+
+    // Write the given documents straight away as one bulk write, with one future per document
+    public List<Future<String>> insertMany(List<JsonObject> documents) {
+        List<PendingInsert> batch = new ArrayList<>(documents.size());
+        List<Future<String>> futures = new ArrayList<>(documents.size());
+
+        for (JsonObject document : documents) {
+            PendingInsert insert = new PendingInsert(document);
+            batch.add(insert);
+            futures.add(insert.promise.future());
+        }
+
+        write(batch);
+        return futures;
+    }
+
+    private void flush() {
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<PendingInsert> batch = pending;
+        pending = new ArrayList<>();
+        write(batch);
+    }
+
+    private void write(List<PendingInsert> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<BulkOperation> operations = new ArrayList<>(batch.size());
+        for (PendingInsert insert : batch) {
+            operations.add(BulkOperation.createInsert(insert.document));
+        }
+
+        mongoClient.bulkWriteWithOptions(collection,
+                                            operations,
+                                            new BulkWriteOptions(false),
+                                            asyncResult -> {
+                                                if (asyncResult.succeeded()) {
+                                                    LOGGER.debug("Inserted batch of " + batch.size() + " products");
+                                                    batch.forEach(insert -> insert.promise.complete(insert.id));
+                                                } else {
+                                                    failBatch(batch, asyncResult.cause());
+                                                }
+                                            });
+    }
+
+    // An unordered bulk write still writes every document it can, only fail the rejected ones
+    private void failBatch(List<PendingInsert> batch, Throwable cause) {
+        if (!(cause instanceof MongoBulkWriteException)) {
+            LOGGER.error("Batch insert of " + batch.size() + " products failed", cause);
+            batch.forEach(insert -> insert.promise.fail(cause));
+            return;
+        }
+
+        Throwable[] errors = new Throwable[batch.size()];
+        for (BulkWriteError error : ((MongoBulkWriteException) cause).getWriteErrors()) {
+            errors[error.getIndex()] = new IllegalStateException(error.getMessage());
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingInsert insert = batch.get(i);
+            if (errors[i] == null) {
+                insert.promise.complete(insert.id);
+            } else {
+                insert.promise.fail(errors[i]);
+            }
+        }
+    }
+
+    private static class PendingInsert {
+        private final String id;
+        private final JsonObject document;
+        private final Promise<String> promise;
+
+        private PendingInsert(JsonObject document) {
+            // Ids are assigned up front as bulk writes do not report generated ones
+            if (!document.containsKey("_id")) {
+                document.put("_id", new ObjectId().toHexString());
+            }
+
+            this.id = String.valueOf(document.getValue("_id"));
+            this.document = document;
+            this.promise = Promise.promise();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.Iterator;
+
+// ReadStream over an iterator, so results a store already holds in process can go through a CursorStreamer
+// like a Mongo cursor. Items are emitted on the given context, a slice per task so a long stream does not
+// hold the event loop, and only while there is demand, so pause() stops it until the next resume().
+public class IteratorReadStream<T> implements ReadStream<T> {
+
+    private static final int SLICE = 256;
+
+    private final Context context;
+    private final Iterator<T> iterator;
+
+    private Handler<T> handler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+    private long demand = Long.MAX_VALUE;
+    private boolean scheduled = false;
+    private boolean ended = false;
+
+    public IteratorReadStream(Context context, Iterator<T> iterator) {
+        this.context = context;
+        this.iterator = iterator;
+    }
+
+    @Override
+    public ReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> handler(Handler<T> handler) {
+        this.handler = handler;
+        if (handler != null) {
+            schedule();
+        }
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> resume() {
+        return fetch(Long.MAX_VALUE);
+    }
+
+    @Override
+    public ReadStream<T> fetch(long amount) {
+        demand += amount;
+        if (demand < 0) {
+            demand = Long.MAX_VALUE;
+        }
+        schedule();
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    private void schedule() {
+        if (!scheduled && !ended) {
+            scheduled = true;
+            context.runOnContext(v -> drain());
+        }
+    }
+
+    private void drain() {
+        scheduled = false;
+
+        int emitted = 0;
+        while (demand > 0 && handler != null && !ended) {
+            if (!iterator.hasNext()) {
+                ended = true;
+                if (endHandler != null) {
+                    endHandler.handle(null);
+                }
+                return;
+            }
+            if (emitted++ == SLICE) {
+                schedule();
+                return;
+            }
+
+            T item;
+            try {
+                item = iterator.next();
+            } catch (RuntimeException e) {
+                ended = true;
+                if (exceptionHandler != null) {
+                    exceptionHandler.handle(e);
+                }
+                return;
+            }
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            handler.handle(item);
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Products kept off heap in a memory mapped file, with an open addressing index from id to record offset
+// held in two int arrays, so a lookup allocates nothing but the id bytes and reads the record in place.
+//
+// File layout :
+//   header  : magic, format version, end of the records, collection version            (HEADER_SIZE bytes)
+//   records : length, state, version, lastModified, id length, number length, id, number, JSON document
+// with strings in UTF-8. The number is the listing sort key, kept out of the JSON so listings can be
+// filtered, sorted and paged without decoding the products.
+// Records are only ever appended. An update appends the new record then marks the old one dead, a delete
+// marks it dead, and the end of the records in the header is moved after the record is written, so a write
+// cut short is ignored when the file is reopened. Reopening only scans the record headers to rebuild the
+// index, and drops the dead records first when they take more room than the live ones.
+// Writes to the mapping survive the process dying since the OS writes the pages back, force() on close
+// flushes them for a clean shutdown.
+//
+// One instance per file and process, shared by the stores of every verticle instance (see open/release),
+// and the file is locked against other processes. Reads take the read lock, so they run in parallel on
+// every event loop, writes take the write lock.
+final class MappedProductFile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedProductFile.class);
+
+    private static final int MAGIC = 0x50524F44;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int END_OFFSET = 8;
+    private static final int COLLECTION_VERSION_OFFSET = 16;
+
+    // length (4) + state (1) + version (8) + lastModified (8) + id length (2) + number length (2)
+    private static final int RECORD_HEADER_SIZE = 25;
+    private static final int STATE_OFFSET = 4;
+    private static final int VERSION_OFFSET = 5;
+    private static final int ID_LENGTH_OFFSET = 21;
+    private static final int NUMBER_LENGTH_OFFSET = 23;
+    // Number length of a product without a number
+    private static final int NO_NUMBER = 0xFFFF;
+    private static final byte LIVE = 1;
+    private static final byte DEAD = 0;
+
+    private static final int PAGE_SIZE = 4096;
+
+    // A single mapping is addressed with an int
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    // Index slots : offset 0 is inside the header, so it marks an empty slot
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    private static final Map<Path, MappedProductFile> OPEN = new HashMap<>();
+
+    private final Path path;
+    private final long initialSize;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes = 0;
+    private long deadBytes = 0;
+    private int references = 0;
+
+    private int[] hashes = new int[1024];
+    private int[] offsets = new int[1024];
+    private int size = 0;
+    private int used = 0;
+
+    // The file at path, opened, or created with initialSize bytes, on first use in the process
+    static MappedProductFile open(Path path, long initialSize) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (OPEN) {
+            MappedProductFile file = OPEN.get(key);
+            if (file == null) {
+                file = new MappedProductFile(key, initialSize);
+                if (file.deadBytes > file.liveBytes) {
+                    file = file.compact();
+                }
+                LOGGER.info("Opened " + key + " with " + file.size + " products");
+                OPEN.put(key, file);
+            }
+            file.references++;
+            return file;
+        }
+    }
+
+    // Closed once every store of the process has released it
+    void release() {
+        synchronized (OPEN) {
+            if (--references > 0) {
+                return;
+            }
+            OPEN.remove(path);
+        }
+        close();
+    }
+
+    private MappedProductFile(Path path, long initialSize) throws IOException {
+        this.path = path;
+        this.initialSize = initialSize;
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileLock = channel.tryLock();
+        if (fileLock == null) {
+            channel.close();
+            throw new IOException(path + " is in use by another process");
+        }
+
+        boolean created = channel.size() == 0;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), Math.max(initialSize, HEADER_SIZE)));
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putInt(END_OFFSET, HEADER_SIZE);
+            buffer.putLong(COLLECTION_VERSION_OFFSET, 0L);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            close();
+            throw new IOException(path + " is not a product store file");
+        }
+
+        end = buffer.getInt(END_OFFSET);
+        rebuildIndex();
+    }
+
+    // Index every live record. A record past a torn write ends the scan, and of two live records
+    // for the same id, left by a crash in the middle of an update, the later one wins.
+    private void rebuildIndex() {
+        int offset = HEADER_SIZE;
+        while (offset < end) {
+            int length = buffer.getInt(offset);
+            if (length < RECORD_HEADER_SIZE || (long) offset + length > end) {
+                LOGGER.warn(path + " : ignoring " + (end - offset) + " bytes after a torn record at " + offset);
+                end = offset;
+                buffer.putInt(END_OFFSET, end);
+                break;
+            }
+
+            if (buffer.get(offset + STATE_OFFSET) == LIVE) {
+                byte[] id = idAt(offset);
+                int hash = hash(id);
+                int slot = slotOf(id, hash);
+                if (slot >= 0) {
+                    kill(offsets[slot]);
+                    offsets[slot] = offset;
+                } else {
+                    insertSlot(hash, offset);
+                }
+                liveBytes += length;
+            } else {
+                deadBytes += length;
+            }
+            offset += length;
+        }
+    }
+
+    // Copy the live records to a new file that replaces this one, then reopen it
+    private MappedProductFile compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        LOGGER.info("Compacting " + path + " : " + deadBytes + " dead bytes, " + liveBytes + " live bytes");
+
+        try (FileChannel out = FileChannel.open(compacted,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT_VERSION);
+            header.putInt(END_OFFSET, (int) (HEADER_SIZE + liveBytes));
+            header.putLong(COLLECTION_VERSION_OFFSET, buffer.getLong(COLLECTION_VERSION_OFFSET));
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+
+            int offset = HEADER_SIZE;
+            while (offset < end) {
+                int length = buffer.getInt(offset);
+                if (buffer.get(offset + STATE_OFFSET) == LIVE) {
+                    ByteBuffer record = buffer.slice(offset, length);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                offset += length;
+            }
+            out.force(true);
+        }
+
+        close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new MappedProductFile(path, initialSize);
+    }
+
+    private void close() {
+        try {
+            buffer.force();
+            if (fileLock.isValid()) {
+                fileLock.release();
+            }
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error("Could not close " + path, e);
+        }
+    }
+
+    long collectionVersion() {
+        lock.readLock().lock();
+        try {
+            return buffer.getLong(COLLECTION_VERSION_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Touch every page holding records
+    void load() {
+        lock.readLock().lock();
+        try {
+            for (int offset = 0; offset < end; offset += PAGE_SIZE) {
+                buffer.get(offset);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    JsonObject get(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(key, hash(key));
+            return slot < 0 ? null : documentAt(offsets[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Version of the product, read from its record header without decoding it, -1 when there is none
+    long version(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(key, hash(key));
+            return slot < 0 ? -1 : buffer.getLong(offsets[slot] + VERSION_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Number, id and record offset of every live product, as of one point in time, without decoding them
+    void forEachKey(KeyConsumer action) {
+        lock.readLock().lock();
+        try {
+            for (int offset : offsets) {
+                if (offset != EMPTY && offset != TOMBSTONE) {
+                    action.accept(numberAt(offset), new String(idAt(offset), StandardCharsets.UTF_8), offset);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Product of a record found by forEachKey. Records are never overwritten, so this is the product
+    // as it was then, even if it was changed since.
+    JsonObject documentAt(int offset) {
+        lock.readLock().lock();
+        try {
+            int start = offset + RECORD_HEADER_SIZE + keysLength(offset);
+            byte[] json = new byte[offset + buffer.getInt(offset) - start];
+            buffer.get(start, json);
+            return new JsonObject(Buffer.buffer(json));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Add a product with a new id. Returns the collection version after the insert, or -1 if the id exists.
+    long insert(String id, JsonObject document) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int hash = hash(key);
+            if (slotOf(key, hash) >= 0) {
+                return -1;
+            }
+
+            long collectionVersion = bumpCollectionVersion();
+            insertSlot(hash, append(key, document));
+            return collectionVersion;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Set the given fields of a product and move its version forward, only while it is at expectedVersion
+    // when that is >= 0. Returns null if there is no such product.
+    Update update(String id, JsonObject changes, long expectedVersion, long lastModified) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = slotOf(key, hash(key));
+            if (slot < 0) {
+                return null;
+            }
+
+            int previous = offsets[slot];
+            long version = buffer.getLong(previous + VERSION_OFFSET);
+            if (expectedVersion >= 0 && version != expectedVersion) {
+                return new Update(-1, version, null);
+            }
+
+            JsonObject document = documentAt(previous).mergeIn(changes)
+                    .put(ProductStore.VERSION_FIELD, version + 1)
+                    .put(ProductStore.LAST_MODIFIED_FIELD, lastModified);
+
+            long collectionVersion = bumpCollectionVersion();
+            offsets[slot] = append(key, document);
+            kill(previous);
+            return new Update(collectionVersion, version + 1, document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns the collection version after the delete, or -1 if there is no such product
+    long delete(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = slotOf(key, hash(key));
+            if (slot < 0) {
+                return -1;
+            }
+
+            long collectionVersion = bumpCollectionVersion();
+            kill(offsets[slot]);
+            offsets[slot] = TOMBSTONE;
+            size--;
+            return collectionVersion;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Bumped before the change is written, so a crash can skip a version but never reuse one
+    private long bumpCollectionVersion() {
+        long collectionVersion = buffer.getLong(COLLECTION_VERSION_OFFSET) + 1;
+        buffer.putLong(COLLECTION_VERSION_OFFSET, collectionVersion);
+        return collectionVersion;
+    }
+
+    private int append(byte[] id, JsonObject document) {
+        Object value = document.getValue("number");
+        byte[] number = value == null ? new byte[0] : String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        if (id.length >= NO_NUMBER || number.length >= NO_NUMBER) {
+            throw new IllegalArgumentException("Product id or number too long");
+        }
+        byte[] json = document.toBuffer().getBytes();
+        long length = (long) RECORD_HEADER_SIZE + id.length + number.length + json.length;
+        ensureCapacity(end + length);
+
+        int offset = end;
+        buffer.putInt(offset, (int) length);
+        buffer.put(offset + STATE_OFFSET, LIVE);
+        buffer.putLong(offset + VERSION_OFFSET, ProductStore.versionOf(document));
+        buffer.putLong(offset + VERSION_OFFSET + 8, document.getLong(ProductStore.LAST_MODIFIED_FIELD, 0L));
+        buffer.putShort(offset + ID_LENGTH_OFFSET, (short) id.length);
+        buffer.putShort(offset + NUMBER_LENGTH_OFFSET, (short) (value == null ? NO_NUMBER : number.length));
+        buffer.put(offset + RECORD_HEADER_SIZE, id);
+        buffer.put(offset + RECORD_HEADER_SIZE + id.length, number);
+        buffer.put(offset + RECORD_HEADER_SIZE + id.length + number.length, json);
+
+        // The record only exists once the end of the records is moved past it
+        end += (int) length;
+        buffer.putInt(END_OFFSET, end);
+        liveBytes += length;
+        return offset;
+    }
+
+    private void kill(int offset) {
+        buffer.put(offset + STATE_OFFSET, DEAD);
+        int length = buffer.getInt(offset);
+        liveBytes -= length;
+        deadBytes += length;
+    }
+
+    // Map a larger file, doubling the size so appends stay amortized
+    private void ensureCapacity(long needed) {
+        if (needed <= buffer.capacity()) {
+            return;
+        }
+        if (needed > MAX_SIZE) {
+            throw new IllegalStateException(path + " is full");
+        }
+
+        long newSize = Math.min(MAX_SIZE, Math.max(needed, (long) buffer.capacity() * 2));
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not grow " + path + " to " + newSize + " bytes", e);
+        }
+        LOGGER.info("Grew " + path + " to " + newSize + " bytes");
+    }
+
+    private String numberAt(int offset) {
+        int numberLength = buffer.getShort(offset + NUMBER_LENGTH_OFFSET) & 0xFFFF;
+        if (numberLength == NO_NUMBER) {
+            return null;
+        }
+        byte[] number = new byte[numberLength];
+        buffer.get(offset + RECORD_HEADER_SIZE + (buffer.getShort(offset + ID_LENGTH_OFFSET) & 0xFFFF), number);
+        return new String(number, StandardCharsets.UTF_8);
+    }
+
+    // Length of the id and number of a record
+    private int keysLength(int offset) {
+        int numberLength = buffer.getShort(offset + NUMBER_LENGTH_OFFSET) & 0xFFFF;
+        return (buffer.getShort(offset + ID_LENGTH_OFFSET) & 0xFFFF) + (numberLength == NO_NUMBER ? 0 : numberLength);
+    }
+
+    private byte[] idAt(int offset) {
+        byte[] id = new byte[buffer.getShort(offset + ID_LENGTH_OFFSET) & 0xFFFF];
+        buffer.get(offset + RECORD_HEADER_SIZE, id);
+        return id;
+    }
+
+    // Index slot of the id, or -1 when it is not in the store
+    private int slotOf(byte[] id, int hash) {
+        int mask = offsets.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int offset = offsets[slot];
+            if (offset == EMPTY) {
+                return -1;
+            }
+            if (offset != TOMBSTONE && hashes[slot] == hash && idEquals(offset, id)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean idEquals(int offset, byte[] id) {
+        if ((buffer.getShort(offset + ID_LENGTH_OFFSET) & 0xFFFF) != id.length) {
+            return false;
+        }
+        int start = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < id.length; i++) {
+            if (buffer.get(start + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertSlot(int hash, int offset) {
+        // Kept at most 3/4 full, tombstones included, so probes stay short and always end
+        if ((used + 1) * 4L > offsets.length * 3L) {
+            resize(size + 1);
+        }
+
+        int mask = offsets.length - 1;
+        int slot = hash & mask;
+        while (offsets[slot] != EMPTY && offsets[slot] != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+        if (offsets[slot] == EMPTY) {
+            used++;
+        }
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        size++;
+    }
+
+    // Rehash into a table where the live entries fill at most half of it, which also drops the tombstones
+    private void resize(int entries) {
+        int capacity = Integer.highestOneBit(Math.max(entries, 512) * 2 - 1) << 1;
+        int[] oldHashes = hashes;
+        int[] oldOffsets = offsets;
+        hashes = new int[capacity];
+        offsets = new int[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] != EMPTY && oldOffsets[i] != TOMBSTONE) {
+                int slot = oldHashes[i] & mask;
+                while (offsets[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                offsets[slot] = oldOffsets[i];
+            }
+        }
+        used = size;
+    }
+
+    // FNV-1a over the id bytes, with the high bits folded in since slots use the low ones
+    private static int hash(byte[] id) {
+        int hash = 0x811C9DC5;
+        for (byte b : id) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    interface KeyConsumer {
+        void accept(String number, String id, int offset);
+    }
+
+    // Outcome of an update : the product as written, or, when it was not at the expected version,
+    // no product, a collection version of -1 and the version the product is at
+    static final class Update {
+        final long collectionVersion;
+        final long version;
+        final JsonObject product;
+
+        private Update(long collectionVersion, long version, JsonObject product) {
+            this.collectionVersion = collectionVersion;
+            this.version = version;
+            this.product = product;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// ProductStore embedded in the service process, on a MappedProductFile shared by every verticle instance.
+// Meant for small, read mostly catalogs : a product read is a hash lookup and a copy out of the mapping,
+// without a network hop, and the products live off heap so they add little to GC. A restart reopens the
+// mapping instead of loading the catalog.
+// Listings are filtered, sorted and paged in process with the same options and replies as the Mongo store.
+// The store is the only writer of its file, so it publishes its changes itself, with the collection
+// version as the id of change events.
+public class MappedProductStore implements ProductStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedProductStore.class);
+    private static final int STREAM_BATCH_SIZE = 100;
+
+    // Ascending (number, _id), products without a number first. Numbers are compared as strings.
+    private static final Comparator<Key> KEY_ORDER = Comparator
+            .comparing((Key key) -> key.number, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(key -> key.id);
+
+    private final Vertx vertx;
+    private final MappedProductFile file;
+
+    public MappedProductStore(Vertx vertx, JsonObject config) throws IOException {
+        this.vertx = vertx;
+        this.file = MappedProductFile.open(Path.of(config.getString("store.mapped.path", "data/products.db")),
+                                            config.getInteger("store.mapped.initialSizeMb", 64) * 1024L * 1024L);
+    }
+
+    // Fault the pages of the file in off the event loop, so the first reads do not wait for the disk
+    @Override
+    public Future<Void> warmUp() {
+        return vertx.executeBlocking(() -> {
+            file.load();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        file.release();
+    }
+
+    @Override
+    public void findAll(Promise<JsonObject> reply, JsonObject inputJson) {
+        long version = file.collectionVersion();
+        if (version == inputJson.getLong("ifNoneMatch", -1L)) {
+            reply.complete(new JsonObject().put("notModified", true).put(VERSION_FIELD, version));
+            return;
+        }
+
+        int limit = inputJson.getInteger("limit", 0);
+        String after = inputJson.getString("after");
+        int direction = "asc".equals(inputJson.getString("sort")) ? 1 : -1;
+        boolean paged = limit > 0 || after != null;
+
+        JsonObject cursor = null;
+        if (after != null) {
+            try {
+                cursor = ProductQuery.decodeCursor(after);
+            } catch (IllegalArgumentException | DecodeException e) {
+                reply.complete(new JsonObject().put("error", "Invalid cursor"));
+                return;
+            }
+        }
+
+        Comparator<Key> order = direction < 0 ? KEY_ORDER.reversed() : KEY_ORDER;
+        Key position = null;
+        if (cursor != null) {
+            position = new Key(cursor.getValue("number") == null ? null : String.valueOf(cursor.getValue("number")),
+                                cursor.getString("_id"),
+                                -1);
+        }
+        // The page plus one, to know whether there is a next page
+        List<Key> keys = firstKeys(inputJson, order, position, limit > 0 ? limit + 1 : 0);
+
+        // Only the products of the page are decoded
+        List<JsonObject> products = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            products.add(file.documentAt(key.offset));
+        }
+
+        JsonObject jsonResponse = new JsonObject();
+        if (!products.isEmpty()) {
+            LOGGER.debug(products.size() + " products");
+
+            List<JsonObject> page = products;
+            if (limit > 0 && products.size() > limit) {
+                page = products.subList(0, limit);
+                jsonResponse.put("next", ProductQuery.encodeCursor(page.get(limit - 1)));
+            }
+
+            JsonObject projection = ProductQuery.projection(inputJson);
+            JsonArray projected = new JsonArray();
+            for (JsonObject product : page) {
+                projected.add(ProductQuery.project(projection, product));
+            }
+            jsonResponse.put("products", projected).put(VERSION_FIELD, version);
+
+        } else if (paged) {
+            // Past the last page
+            jsonResponse.put("products", new JsonArray()).put(VERSION_FIELD, version);
+        } else {
+            jsonResponse.put("error", "No items found");
+        }
+        reply.complete(jsonResponse);
+    }
+
+    // Only the keys of the matching products are held, each product is read from the mapping
+    // when the stream gets to it
+    @Override
+    public void streamAll(Promise<JsonObject> reply, JsonObject inputJson) {
+        String address = inputJson.getString("address");
+        boolean ndjson = "ndjson".equals(inputJson.getString("format"));
+
+        List<Key> keys = matchingKeys(inputJson);
+        keys.sort(KEY_ORDER.reversed());
+
+        JsonObject projection = ProductQuery.projection(inputJson);
+        IteratorReadStream<JsonObject> products = new IteratorReadStream<>(
+                vertx.getOrCreateContext(),
+                keys.stream()
+                        .map(key -> ProductQuery.project(projection, file.documentAt(key.offset)))
+                        .iterator());
+        new CursorStreamer(vertx, products, address, ndjson, STREAM_BATCH_SIZE).start();
+
+        reply.complete(new JsonObject().put("streaming", true));
+    }
+
+    // The version is read from the record header, so a not modified reply does not decode the product
+    @Override
+    public void findById(Promise<JsonObject> reply, String id, long ifNoneMatch) {
+        if (ifNoneMatch >= 0 && file.version(id) == ifNoneMatch) {
+            reply.complete(new JsonObject().put("notModified", true).put(VERSION_FIELD, ifNoneMatch));
+            return;
+        }
+
+        JsonObject product = file.get(id);
+        if (product != null) {
+            LOGGER.debug("Found product " + id);
+            reply.complete(product);
+        } else {
+            reply.complete(new JsonObject().put("error", "No items found"));
+        }
+    }
+
+    @Override
+    public void findByIds(Promise<JsonObject> reply, JsonArray ids) {
+        JsonObject found = new JsonObject();
+        for (int i = 0; i < ids.size(); i++) {
+            JsonObject product = file.get(ids.getString(i));
+            if (product != null) {
+                found.put(ids.getString(i), product);
+            }
+        }
+        LOGGER.debug("Found " + found.size() + " of " + ids.size() + " products");
+
+        reply.complete(new JsonObject().put("products", found));
+    }
+
+    @Override
+    public void add(Promise<JsonObject> reply, JsonObject product) {
+        JsonObject document = ProductStore.versioned(product);
+        long collectionVersion = insert(document);
+        if (collectionVersion < 0) {
+            reply.complete(new JsonObject().put("error", "Item could not be added"));
+            return;
+        }
+
+        String id = document.getString("_id");
+        LOGGER.debug("Product added with Id = " + id);
+        invalidate(collectionVersion, null);
+        reply.complete(ProductStore.added(id, document));
+    }
+
+    @Override
+    public void bulkAdd(Promise<JsonObject> reply, JsonArray products) {
+        JsonArray results = new JsonArray();
+        long lastVersion = -1;
+        for (int i = 0; i < products.size(); i++) {
+            JsonObject document = ProductStore.versioned(products.getJsonObject(i));
+            long collectionVersion = insert(document);
+            if (collectionVersion >= 0) {
+                results.add(new JsonObject().put("id", document.getString("_id")));
+                lastVersion = Math.max(lastVersion, collectionVersion);
+            } else {
+                results.add(new JsonObject().put("error", "Duplicate id"));
+            }
+        }
+
+        // One invalidation for the whole batch, with the version of its last insert. The file is shared by
+        // every verticle instance, so reading its version again could give the one of another instance's write.
+        if (lastVersion >= 0) {
+            invalidate(lastVersion, null);
+        }
+        reply.complete(new JsonObject().put("results", results));
+    }
+
+    // Ids are ObjectId strings, like the ones Mongo generates, unless the product comes with one, and are
+    // set in the document. Returns the collection version of the insert, or -1 when a product with that id exists.
+    private long insert(JsonObject document) {
+        Object givenId = document.getValue("_id");
+        String id = givenId != null ? String.valueOf(givenId) : new ObjectId().toHexString();
+        document.put("_id", id);
+
+        long collectionVersion = file.insert(id, document);
+        if (collectionVersion >= 0) {
+            publishChange(collectionVersion, "insert", id, document);
+        }
+        return collectionVersion;
+    }
+
+    @Override
+    public void update(Promise<JsonObject> reply, String productId, JsonObject updatedProduct, long expectedVersion) {
+        LOGGER.debug("Update Product request for Id " + productId);
+
+        // The version is only ever moved forward here, never taken from the caller
+        JsonObject changes = updatedProduct.copy();
+        changes.remove(VERSION_FIELD);
+        changes.remove("_id");
+
+        MappedProductFile.Update update = file.update(productId, changes, expectedVersion, System.currentTimeMillis());
+        if (update == null) {
+            reply.complete(ProductStore.notFound());
+        } else if (update.product == null) {
+            reply.complete(ProductStore.conflict(update.version));
+        } else {
+            invalidate(update.collectionVersion, productId);
+            publishChange(update.collectionVersion, "update", productId, update.product);
+            reply.complete(update.product);
+        }
+    }
+
+    @Override
+    public void delete(Promise<JsonObject> reply, String id) {
+        LOGGER.debug("Delete Product request for Id " + id);
+
+        long collectionVersion = file.delete(id);
+        if (collectionVersion < 0) {
+            reply.complete(ProductStore.notFound());
+            return;
+        }
+        invalidate(collectionVersion, id);
+        publishChange(collectionVersion, "delete", id, null);
+        reply.complete(new JsonObject().put("deleted", true));
+    }
+
+    // Without filters the index knows the count, without reading any record
+    @Override
+    public void count(Promise<JsonObject> reply, JsonObject inputJson) {
+        int count = ProductQuery.filter(inputJson).isEmpty() ? file.size() : matchingKeys(inputJson).size();
+        reply.complete(new JsonObject().put("count", count).put("estimated", false));
+    }
+
+    // Descriptions are in the JSON, so every matching product is decoded, off the event loop
+    @Override
+    public void stats(Promise<JsonObject> reply, JsonObject inputJson) {
+        vertx.executeBlocking(() -> {
+            ProductStats stats = new ProductStats(inputJson);
+            for (Key key : matchingKeys(inputJson)) {
+                stats.add(key.number, file.documentAt(key.offset).getValue("description"));
+            }
+            return stats.toJson();
+        }, false).onComplete(reply);
+    }
+
+    // Same messages as the Mongo store and its ChangeFeed publish
+    private void invalidate(long collectionVersion, String id) {
+        JsonObject invalidation = new JsonObject().put("collectionVersion", collectionVersion);
+        if (id != null) {
+            invalidation.put("id", id);
+        }
+        vertx.eventBus().publish(MongoManager.invalidationAddress(), invalidation);
+    }
+
+    private void publishChange(long collectionVersion, String op, String id, JsonObject product) {
+        JsonObject event = new JsonObject()
+                .put("id", String.valueOf(collectionVersion))
+                .put("op", op)
+                .put("productId", id);
+        if (product != null) {
+            event.put("product", product);
+        }
+        vertx.eventBus().publish(MongoManager.changesAddress(), event);
+    }
+
+    // Keys of the products matching the ProductQuery options. Products are only decoded for a text search.
+    private List<Key> matchingKeys(JsonObject options) {
+        boolean text = options.getString("q") != null;
+        List<Key> keys = new ArrayList<>();
+        file.forEachKey((number, id, offset) -> {
+            if (ProductQuery.matchesNumber(options, number)
+                    && (!text || ProductQuery.matches(options, file.documentAt(offset)))) {
+                keys.add(new Key(number, id, offset));
+            }
+        });
+        return keys;
+    }
+
+    // The first max keys of the matching products after position in the given order, all of them when max is 0.
+    // A page only keeps max keys in a heap while going over the index, rather than sorting every key.
+    private List<Key> firstKeys(JsonObject options, Comparator<Key> order, Key position, int max) {
+        if (max <= 0) {
+            List<Key> keys = matchingKeys(options);
+            if (position != null) {
+                keys.removeIf(key -> order.compare(key, position) <= 0);
+            }
+            keys.sort(order);
+            return keys;
+        }
+
+        boolean text = options.getString("q") != null;
+        // Head is the last of the keys kept, the one to drop when a key before it turns up
+        PriorityQueue<Key> heap = new PriorityQueue<>(max + 1, order.reversed());
+        file.forEachKey((number, id, offset) -> {
+            if (!ProductQuery.matchesNumber(options, number)) {
+                return;
+            }
+            Key key = new Key(number, id, offset);
+            if ((position != null && order.compare(key, position) <= 0)
+                    || (heap.size() >= max && order.compare(key, heap.peek()) >= 0)) {
+                return;
+            }
+            if (text && !ProductQuery.matches(options, file.documentAt(offset))) {
+                return;
+            }
+            heap.add(key);
+            if (heap.size() > max) {
+                heap.poll();
+            }
+        });
+
+        List<Key> keys = new ArrayList<>(heap);
+        keys.sort(order);
+        return keys;
+    }
+
+    // Listing sort key of a product, and where its record is
+    private static final class Key {
+        private final String number;
+        private final String id;
+        private final int offset;
+
+        private Key(String number, String id, int offset) {
+            this.number = number;
+            this.id = id;
+            this.offset = offset;
+        }
+    }
+}
@@ -1,199 +1,211 @@
 package com.arushi.practicevertx.database;
 
+import com.arushi.practicevertx.eventbus.FailureCodes;
+import com.arushi.practicevertx.eventbus.LocalConsumers;
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import com.arushi.practicevertx.eventbus.ProductMessage;
+import com.arushi.practicevertx.eventbus.ProductMessageCodec;
+import com.arushi.practicevertx.metrics.LatencyHistogram;
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.impl.logging.Logger;
 import io.vertx.core.impl.logging.LoggerFactory;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.mongo.FindOptions;
-import io.vertx.ext.mongo.MongoClient;
 
-import java.util.List;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MongoManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoManager.class);
-    private MongoClient mongoClient = null;
+    private final ProductStore store;
+    private Vertx vertx = null;
+    private final AdmissionController admissionController;
+    private final SlowQueryLog slowQueryLog;
     private static final String mongoServiceName = "com.arushi.mongoservice";
+    private static final String invalidationAddress = mongoServiceName + ".invalidate";
+    private static final String changesAddress = mongoServiceName + ".changes";
+
+    // Per command metrics, the time includes the store operation(s) the command runs
+    private static final LongAdder COMMANDS_IN_FLIGHT = Metrics.gauge("mongo_commands_in_flight",
+                                                                        "Mongo service commands being executed", "");
+    private static final Map<ProductCommand, LatencyHistogram> COMMAND_LATENCY = new EnumMap<>(ProductCommand.class);
+    private static final Map<ProductCommand, LongAdder> COMMAND_ERRORS = new EnumMap<>(ProductCommand.class);
+    private static final Map<ProductCommand, LongAdder> COMMANDS_REJECTED = new EnumMap<>(ProductCommand.class);
+    private static final Map<ProductCommand, LongAdder> COMMANDS_EXPIRED = new EnumMap<>(ProductCommand.class);
+
+    static {
+        for (ProductCommand command : ProductCommand.values()) {
+            String labels = "command=\"" + command + "\"";
+            COMMAND_LATENCY.put(command, Metrics.histogram("mongo_command_duration_seconds",
+                                                            "Time to execute a Mongo service command", labels));
+            COMMAND_ERRORS.put(command, Metrics.counter("mongo_command_errors_total",
+                                                            "Mongo service commands that failed or replied with an error", labels));
+            COMMANDS_REJECTED.put(command, Metrics.counter("mongo_commands_rejected_total",
+                                                            "Mongo service commands shed by admission control", labels));
+            COMMANDS_EXPIRED.put(command, Metrics.counter("mongo_commands_expired_total",
+                                                            "Mongo service commands dropped because their deadline had passed", labels));
+        }
+    }
 
-   public MongoManager(MongoClient mongoClient) {
-       this.mongoClient = mongoClient;
+    public MongoManager(ProductStore store, JsonObject config) {
+       this.store = store;
+       this.admissionController = new AdmissionController(config);
+       this.slowQueryLog = new SlowQueryLog(store, config);
     }
 
     public static String serviceName() {
        return mongoServiceName;
     }
 
-    public void registerConsumer(Vertx vertx) {
-
-       vertx.eventBus().consumer(mongoServiceName, message -> {
-            System.out.println(mongoServiceName+ " :: Received message : " + message.body());
-
-            JsonObject inputJson = new JsonObject(message.body().toString());
-
-            if (inputJson.getString("cmd").equals("findAll")) {
-               getAllProducts(message);
-            } else if (inputJson.getString("cmd").equals("findById")) {
-                getProductById(message, inputJson.getString("id"));
-            } else if (inputJson.getString("cmd").equals("add")) {
-                addProduct(message, inputJson.getJsonObject("product"));
-            } else if (inputJson.getString("cmd").equals("update")) {
-                updateProduct(message, inputJson.getString("id"), inputJson.getJsonObject("product"));
-            } else if (inputJson.getString("cmd").equals("delete")) {
-                deleteProduct(message, inputJson.getString("id"));
-            }
-
-        });
-
+    // Published to with {"id": ..., "collectionVersion": ...} whenever products are added, changed or removed.
+    // "id" is only there for a changed or removed product, "collectionVersion" is missing if it could not be bumped.
+    public static String invalidationAddress() {
+       return invalidationAddress;
     }
 
-    private void getAllProducts(Message<Object> message) {
-        FindOptions findOptions = new FindOptions();
-//        findOptions.setLimit(1);
-        findOptions.setSort(new JsonObject().put("number",-1)); // descending sort for number field
-
-        mongoClient.findWithOptions("products",
-                new JsonObject(),
-                findOptions,
-                results -> {
-                    JsonObject jsonResponse = new JsonObject();
-
-                    try{
-                        List<JsonObject> products = results.result();
-
-                        if(products!=null && !products.isEmpty()) {
-                            System.out.println(products.size() + " products");
-                            jsonResponse.put("products",products);
-
-                        } else {
-                            jsonResponse.put("error", "No items found");
-                        }
-
-                    } catch (Exception e) {
-                        LOGGER.error("getAllProducts failed. Exception e = " , e);
-
-                        jsonResponse.put("error", "Exception & No items found");
-
-                    }
-
-                    message.replyAndRequest(jsonResponse.toString());
-
-                });
+    // Published to with every change of the product collection, see ChangeFeed
+    public static String changesAddress() {
+       return changesAddress;
     }
 
+    public void registerConsumer(Vertx vertx) {
+       this.vertx = vertx;
+       ProductMessageCodec.register(vertx);
 
-    private void getProductById(Message<Object> message, String id) {
-       mongoClient.find("products",
-                            new JsonObject().put("_id",id),
-                            asyncResult -> {
-                                JsonObject jsonResponse = null;
-
-                                try {
-                                    List<JsonObject> resultList = asyncResult.result();
-
-                                    if (resultList != null && !resultList.isEmpty()) {
-                                        System.out.println("Product = " + resultList);
-
-                                        jsonResponse = resultList.get(0);
-
-                                    } else {
-                                        jsonResponse = new JsonObject().put("error", "No items found");
-                                    }
-
-                                } catch (Exception e) {
-                                    LOGGER.error("getAllProducts failed. Exception e = ", e);
+       vertx.eventBus().<ProductMessage>consumer(mongoServiceName, message -> {
+            ProductCommand command = ProductCommand.of(message);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(mongoServiceName+ " :: Received message : " + command + " " + message.body());
+            }
 
-                                    jsonResponse = new JsonObject().put("error", "Exception & No items found");
+            if (command == null) {
+                message.fail(FailureCodes.UNKNOWN_COMMAND, "Unknown command");
+                return;
+            }
 
-                                }
+            // Nobody waits for the reply any more, do not spend Mongo time on it
+            long deadline = ProductCommand.deadlineOf(message);
+            if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+                COMMANDS_EXPIRED.get(command).increment();
+                message.fail(FailureCodes.DEADLINE_EXCEEDED, command + " deadline passed before it was executed");
+                return;
+            }
 
-                                message.replyAndRequest(jsonResponse.toString());
+            // Shed load early rather than queue work Mongo cannot keep up with
+            if (!admissionController.tryAcquire(command)) {
+                COMMANDS_REJECTED.get(command).increment();
+                message.fail(FailureCodes.OVERLOADED, "Too many " + command + " commands in flight");
+                return;
+            }
+            long startTime = System.nanoTime();
+            COMMANDS_IN_FLIGHT.increment();
+
+            JsonObject inputJson = message.body().json();
+            Promise<JsonObject> reply = Promise.promise();
+            reply.future().onComplete(asyncResult -> {
+                long latency = System.nanoTime() - startTime;
+                COMMANDS_IN_FLIGHT.decrement();
+                COMMAND_LATENCY.get(command).record(latency);
+                slowQueryLog.record(command, inputJson, latency);
+                if (asyncResult.failed() || asyncResult.result().containsKey("error")) {
+                    COMMAND_ERRORS.get(command).increment();
+                }
+
+                admissionController.release(command, latency, asyncResult.succeeded());
+                if (asyncResult.succeeded()) {
+                    reply(message, asyncResult.result(), inputJson.getBoolean("raw", false));
+                } else {
+                    LOGGER.error(command + " failed", asyncResult.cause());
+                    message.fail(FailureCodes.MONGO_ERROR, String.valueOf(asyncResult.cause().getMessage()));
+                }
+            });
+
+            try {
+                dispatch(command, reply, inputJson);
+            } catch (RuntimeException e) {
+                // Always answer, or the sender would wait for its timeout
+                reply.tryFail(e);
+            }
 
-                            }
-       );
+        });
 
+       // API verticles of this JVM send here first, see LocalFirstRouter
+       LocalConsumers.register(vertx, mongoServiceName);
     }
 
-
-   private void addProduct(Message<Object> message, JsonObject product) {
-       System.out.println("Add Product to Mongo request : " + product.toString());
-       mongoClient.insert("products",
-                                product,
-                                asyncResult -> {
-                                    if(asyncResult.succeeded()) {
-                                        JsonObject jsonResponse = null;
-
-                                        try {
-                                            String itemId = asyncResult.result();
-
-                                            if (!itemId.isEmpty() && !itemId.isBlank()) {
-                                                System.out.println("Product added with Id = " + itemId);
-
-                                                jsonResponse = new JsonObject().put("id", itemId);
-
-                                            }
-                                        else {
-                                                jsonResponse = new JsonObject().put("error", "Item could not be added");
-                                            }
-
-                                        } catch (Exception e) {
-                                            LOGGER.error("addProduct failed. Exception e = ", e);
-
-                                            jsonResponse = new JsonObject().put("error", "Exception & Item not added");
-
-                                        }
-
-                                        message.replyAndRequest(jsonResponse.toString());
-                                    }
-                                });
-   }
-
-    private void updateProduct(Message<Object> message, String productId, JsonObject updatedProduct) {
-        System.out.println("Update Product request to MongoDB : " + updatedProduct.toString());
-
-        JsonObject queryObject = new JsonObject().put("_id", productId);
-        JsonObject updateRequest = new JsonObject().put("$set",updatedProduct);
-
-        mongoClient.updateCollection("products",
-                                        queryObject,
-                                        updateRequest,
-                                        asyncResult -> {
-
-                                            if(asyncResult.succeeded()) {
-
-                                                JsonObject jsonResponse = new JsonObject();
-                                                jsonResponse.put("updated", true);
-
-                                                message.replyAndRequest(jsonResponse.toString());
-
-                                            } else {
-                                                LOGGER.error("updateProduct failed for ID " + productId + " : " + asyncResult.cause().toString());
-                                            }
-                                        }
-                );
-
+    public void stop() {
+        LocalConsumers.unregister(vertx, mongoServiceName);
+        store.close();
+        admissionController.close();
     }
 
-    private void deleteProduct(Message<Object> message, String id) {
-        System.out.println("Delete Product request to MongoDB for Id " + id);
-
-        mongoClient.findOneAndDelete("products",
-                                        new JsonObject().put("_id",id),
-                                        asyncResult -> {
-                                            JsonObject response = new JsonObject();
-
-                                            if(asyncResult.succeeded()) {
-                                                response.put("deleted", true);
-                                                message.replyAndRequest(response.toString());
+    private void dispatch(ProductCommand command, Promise<JsonObject> reply, JsonObject inputJson) {
+        switch (command) {
+            case FIND_ALL:
+                store.findAll(reply, inputJson);
+                break;
+            case FIND_ALL_STREAM:
+                store.streamAll(reply, inputJson);
+                break;
+            case FIND_BY_ID:
+                store.findById(reply, inputJson.getString("id"), inputJson.getLong("ifNoneMatch", -1L));
+                break;
+            case FIND_BY_IDS:
+                store.findByIds(reply, inputJson.getJsonArray("ids"));
+                break;
+            case ADD:
+                store.add(reply, inputJson.getJsonObject("product"));
+                break;
+            case BULK_INSERT:
+                store.bulkAdd(reply, inputJson.getJsonArray("products"));
+                break;
+            case UPDATE:
+                store.update(reply,
+                                inputJson.getString("id"),
+                                inputJson.getJsonObject("product"),
+                                inputJson.getLong("expectedVersion", -1L));
+                break;
+            case DELETE:
+                store.delete(reply, inputJson.getString("id"));
+                break;
+            case COUNT:
+                store.count(reply, inputJson);
+                break;
+            case STATS:
+                store.stats(reply, inputJson);
+                break;
+        }
+    }
 
-                                            } else {
-                                                LOGGER.error("deleteProduct failed for ID " + id + " : " + asyncResult.cause().toString());
-                                            }
+    // Raw replies are encoded once here, with their HTTP status and version in headers,
+    // so the API can write them to the response without parsing them again.
+    // A not modified reply has no body at all.
+    private void reply(Message<ProductMessage> message, JsonObject response, boolean raw) {
+        if (raw) {
+            DeliveryOptions options = new DeliveryOptions().addHeader(LocalConsumers.NODE_HEADER, LocalConsumers.NODE_ID);
+            if (response.getValue(ProductStore.VERSION_FIELD) instanceof Number) {
+                options.addHeader(ProductMessage.VERSION_HEADER, String.valueOf(response.getLong(ProductStore.VERSION_FIELD)));
+            }
 
-                                        }
-                );
+            if (response.getBoolean("notModified", false)) {
+                options.addHeader(ProductMessage.STATUS_HEADER, "304");
+                message.reply(ProductMessage.raw(Buffer.buffer()), options);
+                return;
+            }
 
+            int status = response.containsKey("error") ? 400 : 200;
+            options.addHeader(ProductMessage.STATUS_HEADER, String.valueOf(status));
+            message.reply(ProductMessage.raw(response.toBuffer()), options);
+        } else {
+            message.reply(ProductMessage.of(response),
+                            new DeliveryOptions().addHeader(LocalConsumers.NODE_HEADER, LocalConsumers.NODE_ID));
+        }
     }
 
-
 }
@@ -0,0 +1,624 @@
+package com.arushi.practicevertx.database;
+
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// ProductStore on the products collection of MongoDB, one per Mongo service verticle instance.
+// The collection version is kept in a document of the meta collection, and with mongodb.changes.enabled
+// a ChangeFeed publishes the changes made by any writer of the collection.
+// That version costs a round trip to the meta collection per write, every writer incrementing the same
+// document, and a findOne per listing read. mongodb.collectionVersion.enabled false drops both, the
+// listing then has no ETag and every change makes the API stop trusting the version it knew.
+public class MongoProductStore implements ProductStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoProductStore.class);
+    private static final int STREAM_BATCH_SIZE = 100;
+    private static final String META_COLLECTION = "meta";
+    private static final JsonObject COLLECTION_VERSION_QUERY = new JsonObject().put("_id", "products");
+
+    private final Vertx vertx;
+    private final MongoClient mongoClient;
+    private final boolean useObjectId;
+    private final int insertBatchSize;
+    private final InsertBatcher insertBatcher;
+    private final int warmupConnections;
+    private final boolean collectionVersioned;
+    private ChangeFeed changeFeed = null;
+
+    public MongoProductStore(Vertx vertx, MongoClient mongoClient, JsonObject config) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.useObjectId = config.getBoolean("mongodb.useObjectId", false);
+        // Batching of single inserts is off unless a batch size above 1 is configured,
+        // bulk inserts always go through the batcher
+        this.insertBatchSize = config.getInteger("mongodb.insertBatch.size", 0);
+        this.insertBatcher = new InsertBatcher(vertx,
+                                                mongoClient,
+                                                "products",
+                                                Math.max(insertBatchSize, 1),
+                                                config.getLong("mongodb.insertBatch.windowMs", 5L));
+
+        this.warmupConnections = config.getInteger("mongodb.warmup.connections", 4);
+        this.collectionVersioned = config.getBoolean("mongodb.collectionVersion.enabled", true);
+
+        // Change streams need a replica set, so the feed is off unless asked for
+        if (config.getBoolean("mongodb.changes.enabled", false)) {
+            changeFeed = new ChangeFeed(vertx, mongoClient, MongoManager.changesAddress(), config.getLong("mongodb.changes.retryMs", 5000L));
+            changeFeed.start();
+        }
+    }
+
+    // Open pool connections before the first commands need them, with that many pings at once
+    @Override
+    public Future<Void> warmUp() {
+        List<Future<JsonObject>> pings = new ArrayList<>(warmupConnections);
+        for (int i = 0; i < warmupConnections; i++) {
+            pings.add(mongoClient.runCommand("ping", new JsonObject().put("ping", 1)));
+        }
+        return Future.all(pings).mapEmpty();
+    }
+
+    @Override
+    public void close() {
+        if (changeFeed != null) {
+            changeFeed.stop();
+        }
+    }
+
+    // The collection version is read before the products, so the "version" of the reply is never
+    // newer than its content. If it matches "ifNoneMatch" the products are not read at all.
+    @Override
+    public void findAll(Promise<JsonObject> reply, JsonObject inputJson) {
+        long ifNoneMatch = inputJson.getLong("ifNoneMatch", -1L);
+
+        if (!collectionVersioned) {
+            findProducts(reply, inputJson, -1);
+            return;
+        }
+
+        collectionVersion().onComplete(versionResult -> {
+            if (versionResult.failed()) {
+                LOGGER.error("Could not read the products version", versionResult.cause());
+                findProducts(reply, inputJson, -1);
+            } else if (versionResult.result() == ifNoneMatch) {
+                reply.complete(new JsonObject().put("notModified", true).put(VERSION_FIELD, ifNoneMatch));
+            } else {
+                findProducts(reply, inputJson, versionResult.result());
+            }
+        });
+    }
+
+    // Products matching the ProductQuery filters, all of them when there are none.
+    // Without "limit"/"after" every product is returned, as before.
+    // With them a page is read using a keyset range on (number, _id) rather than skip,
+    // so deep pages cost the same as the first one, and a "next" cursor is returned.
+    private void findProducts(Promise<JsonObject> reply, JsonObject inputJson, long version) {
+        int limit = inputJson.getInteger("limit", 0);
+        String after = inputJson.getString("after");
+        int direction = "asc".equals(inputJson.getString("sort")) ? 1 : -1;
+        boolean paged = limit > 0 || after != null;
+
+        JsonObject query;
+        try {
+            query = listingQuery(inputJson, direction);
+        } catch (IllegalArgumentException | DecodeException e) {
+            reply.complete(new JsonObject().put("error", "Invalid cursor"));
+            return;
+        }
+
+        FindOptions findOptions = new FindOptions();
+        findOptions.setSort(listingSort(direction));
+        JsonObject projection = ProductQuery.projection(inputJson);
+        if (projection != null) {
+            findOptions.setFields(projection);
+        }
+        if (limit > 0) {
+            // Read one extra document to know whether there is a next page
+            findOptions.setLimit(limit + 1);
+        }
+
+        mongoClient.findWithOptions("products",
+                query,
+                findOptions,
+                results -> {
+                    JsonObject jsonResponse = new JsonObject();
+
+                    try{
+                        List<JsonObject> products = results.result();
+
+                        if(products!=null && !products.isEmpty()) {
+                            LOGGER.debug(products.size() + " products");
+
+                            if (limit > 0 && products.size() > limit) {
+                                products = products.subList(0, limit);
+                                jsonResponse.put("next", ProductQuery.encodeCursor(products.get(limit - 1)));
+                            }
+                            jsonResponse.put("products",products);
+
+                        } else if (paged) {
+                            // Past the last page
+                            jsonResponse.put("products", new JsonArray());
+                        } else {
+                            jsonResponse.put("error", "No items found");
+                        }
+
+                    } catch (Exception e) {
+                        LOGGER.error("getAllProducts failed. Exception e = " , e);
+
+                        jsonResponse.put("error", "Exception & No items found");
+
+                    }
+
+                    if (version >= 0 && !jsonResponse.containsKey("error")) {
+                        jsonResponse.put(VERSION_FIELD, version);
+                    }
+                    reply.complete(jsonResponse);
+
+                });
+    }
+
+    // Filter of a listing page, starting after the "after" cursor when there is one
+    private JsonObject listingQuery(JsonObject inputJson, int direction) {
+        JsonObject query = ProductQuery.filter(inputJson);
+        String after = inputJson.getString("after");
+        if (after != null) {
+            query = ProductQuery.and(query, keysetQuery(ProductQuery.decodeCursor(after), direction));
+        }
+        return query;
+    }
+
+    // sort for number field (descending by default), _id breaks ties so the cursor is exact
+    private static JsonObject listingSort(int direction) {
+        return new JsonObject().put("number",direction).put("_id",direction);
+    }
+
+    // Plan of the product query a command runs, as the queryPlanner section of explain.
+    // Commands are explained as finds, an update or delete selects its product the same way.
+    // The command goes to the server as is, so ids are given in their $oid form.
+    @Override
+    public Future<JsonObject> explain(ProductCommand command, JsonObject inputJson) {
+        JsonObject find = new JsonObject().put("find", "products");
+        switch (command) {
+            case FIND_ALL:
+                int direction = "asc".equals(inputJson.getString("sort")) ? 1 : -1;
+                int limit = inputJson.getInteger("limit", 0);
+                try {
+                    find.put("filter", listingQuery(inputJson, direction));
+                } catch (IllegalArgumentException | DecodeException e) {
+                    return Future.succeededFuture();
+                }
+                find.put("sort", listingSort(direction));
+                if (limit > 0) {
+                    find.put("limit", limit + 1);
+                }
+                break;
+            case FIND_ALL_STREAM:
+                find.put("filter", ProductQuery.filter(inputJson)).put("sort", new JsonObject().put("number", -1));
+                break;
+            case COUNT:
+            case STATS:
+                find.put("filter", ProductQuery.filter(inputJson));
+                break;
+            case FIND_BY_ID:
+            case UPDATE:
+            case DELETE:
+                find.put("filter", new JsonObject().put("_id", idValue(inputJson.getString("id"))));
+                break;
+            case FIND_BY_IDS:
+                JsonArray in = new JsonArray();
+                JsonArray ids = inputJson.getJsonArray("ids", new JsonArray());
+                for (int i = 0; i < ids.size(); i++) {
+                    in.add(idValue(ids.getString(i)));
+                }
+                find.put("filter", new JsonObject().put("_id", new JsonObject().put("$in", in)));
+                break;
+            default:
+                // Inserts do not query
+                return Future.succeededFuture();
+        }
+
+        return mongoClient.runCommand("explain", new JsonObject().put("explain", find).put("verbosity", "queryPlanner"))
+                .map(explain -> explain.getJsonObject("queryPlanner"));
+    }
+
+    // Current version of the product collection, 0 until the first change
+    private Future<Long> collectionVersion() {
+        return mongoClient.findOne(META_COLLECTION, COLLECTION_VERSION_QUERY, new JsonObject().put(VERSION_FIELD, 1))
+                .map(meta -> meta == null ? 0L : meta.getLong(VERSION_FIELD, 0L));
+    }
+
+    // Bump the collection version after a change, then tell every API instance about it
+    private Future<Void> collectionChanged(String id) {
+        if (!collectionVersioned) {
+            JsonObject change = new JsonObject();
+            if (id != null) {
+                change.put("id", id);
+            }
+            vertx.eventBus().publish(MongoManager.invalidationAddress(), change);
+            return Future.succeededFuture();
+        }
+
+        return mongoClient.findOneAndUpdateWithOptions(META_COLLECTION,
+                                                        COLLECTION_VERSION_QUERY,
+                                                        new JsonObject().put("$inc", new JsonObject().put(VERSION_FIELD, 1L)),
+                                                        new FindOptions(),
+                                                        new UpdateOptions().setUpsert(true).setReturningNewDocument(true))
+                .transform(asyncResult -> {
+                    JsonObject change = new JsonObject();
+                    if (id != null) {
+                        change.put("id", id);
+                    }
+
+                    if (asyncResult.succeeded()) {
+                        change.put("collectionVersion", asyncResult.result().getLong(VERSION_FIELD));
+                    } else {
+                        LOGGER.error("Could not bump the products version", asyncResult.cause());
+                    }
+
+                    vertx.eventBus().publish(MongoManager.invalidationAddress(), change);
+                    return Future.succeededFuture();
+                });
+    }
+
+    // Documents strictly after the cursor position in the given sort direction
+    private JsonObject keysetQuery(JsonObject cursor, int direction) {
+        String op = direction < 0 ? "$lt" : "$gt";
+        Object number = cursor.getValue("number");
+        Object id = idValue(cursor.getString("_id"));
+
+        return new JsonObject().put("$or", new JsonArray()
+                .add(new JsonObject().put("number", new JsonObject().put(op, number)))
+                .add(new JsonObject().put("number", number).put("_id", new JsonObject().put(op, id))));
+    }
+
+    // The client only rewrites a plain "_id" key to an ObjectId, ids inside operators need the $oid form
+    private Object idValue(String id) {
+        if (useObjectId && ObjectId.isValid(id)) {
+            return new JsonObject().put("$oid", id);
+        }
+        return id;
+    }
+
+    // findOneAndUpdate hands back an ObjectId as {"$oid": ...}, unlike find() which flattens it,
+    // so the product has the same shape whichever command read it
+    private static JsonObject withPlainId(JsonObject product) {
+        Object id = product.getValue("_id");
+        if (id instanceof JsonObject && ((JsonObject) id).containsKey("$oid")) {
+            product.put("_id", ((JsonObject) id).getString("$oid"));
+        }
+        return product;
+    }
+
+    // Stream all products in batches to the address given by the caller instead of
+    // collecting the whole collection into one reply
+    @Override
+    public void streamAll(Promise<JsonObject> reply, JsonObject inputJson) {
+        String address = inputJson.getString("address");
+        boolean ndjson = "ndjson".equals(inputJson.getString("format"));
+
+        FindOptions findOptions = new FindOptions();
+        findOptions.setSort(new JsonObject().put("number",-1)); // descending sort for number field
+        findOptions.setBatchSize(STREAM_BATCH_SIZE);
+        JsonObject projection = ProductQuery.projection(inputJson);
+        if (projection != null) {
+            findOptions.setFields(projection);
+        }
+
+        ReadStream<JsonObject> cursor = mongoClient.findBatchWithOptions("products", ProductQuery.filter(inputJson), findOptions);
+        new CursorStreamer(vertx, cursor, address, ndjson, STREAM_BATCH_SIZE).start();
+
+        reply.complete(new JsonObject().put("streaming", true));
+    }
+
+    // Replies not modified, without the product, when it is still at the "ifNoneMatch" version
+    @Override
+    public void findById(Promise<JsonObject> reply, String id, long ifNoneMatch) {
+       mongoClient.find("products",
+                            new JsonObject().put("_id",id),
+                            asyncResult -> {
+                                JsonObject jsonResponse = null;
+
+                                try {
+                                    List<JsonObject> resultList = asyncResult.result();
+
+                                    if (resultList != null && !resultList.isEmpty()) {
+                                        LOGGER.debug("Found product " + id);
+
+                                        jsonResponse = resultList.get(0);
+                                        if (ProductStore.versionOf(jsonResponse) == ifNoneMatch) {
+                                            jsonResponse = new JsonObject().put("notModified", true).put(VERSION_FIELD, ifNoneMatch);
+                                        }
+
+                                    } else {
+                                        jsonResponse = new JsonObject().put("error", "No items found");
+                                    }
+
+                                } catch (Exception e) {
+                                    LOGGER.error("getAllProducts failed. Exception e = ", e);
+
+                                    jsonResponse = new JsonObject().put("error", "Exception & No items found");
+
+                                }
+
+                                reply.complete(jsonResponse);
+
+                            }
+       );
+
+    }
+
+
+    // Look up many products with one $in query
+    // Replies {"products": {id: product}} holding the products that were found
+    @Override
+    public void findByIds(Promise<JsonObject> reply, JsonArray ids) {
+        JsonArray in = new JsonArray();
+        for (int i = 0; i < ids.size(); i++) {
+            in.add(idValue(ids.getString(i)));
+        }
+
+        mongoClient.find("products",
+                            new JsonObject().put("_id", new JsonObject().put("$in", in)),
+                            asyncResult -> {
+                                if (asyncResult.failed()) {
+                                    reply.fail(asyncResult.cause());
+                                    return;
+                                }
+
+                                JsonObject found = new JsonObject();
+                                for (JsonObject product : asyncResult.result()) {
+                                    Object id = product.getValue("_id");
+                                    if (id instanceof JsonObject) {
+                                        id = ((JsonObject) id).getString("$oid");
+                                    }
+                                    found.put(String.valueOf(id), product);
+                                }
+                                LOGGER.debug("Found " + found.size() + " of " + ids.size() + " products");
+
+                                reply.complete(new JsonObject().put("products", found));
+                            }
+        );
+    }
+
+
+   @Override
+   public void add(Promise<JsonObject> reply, JsonObject product) {
+       LOGGER.debug("Add Product to Mongo request");
+
+       JsonObject document = ProductStore.versioned(product);
+
+       if (insertBatchSize > 1) {
+           insertBatcher.add(document).onComplete(asyncResult -> {
+               if (asyncResult.succeeded()) {
+                   JsonObject jsonResponse = ProductStore.added(asyncResult.result(), document);
+                   collectionChanged(null).onComplete(v -> reply.complete(jsonResponse));
+               } else {
+                   LOGGER.error("addProduct failed. Exception e = ", asyncResult.cause());
+                   reply.complete(new JsonObject().put("error", "Exception & Item not added"));
+               }
+           });
+           return;
+       }
+
+       mongoClient.insert("products",
+                                document,
+                                asyncResult -> {
+                                    if(asyncResult.succeeded()) {
+                                        JsonObject jsonResponse = null;
+
+                                        try {
+                                            String itemId = asyncResult.result();
+
+                                            if (!itemId.isEmpty() && !itemId.isBlank()) {
+                                                LOGGER.debug("Product added with Id = " + itemId);
+
+                                                jsonResponse = ProductStore.added(itemId, document);
+
+                                            }
+                                        else {
+                                                jsonResponse = new JsonObject().put("error", "Item could not be added");
+                                            }
+
+                                        } catch (Exception e) {
+                                            LOGGER.error("addProduct failed. Exception e = ", e);
+
+                                            jsonResponse = new JsonObject().put("error", "Exception & Item not added");
+
+                                        }
+
+                                        if (jsonResponse.containsKey("id")) {
+                                            JsonObject response = jsonResponse;
+                                            collectionChanged(null).onComplete(v -> reply.complete(response));
+                                        } else {
+                                            reply.complete(jsonResponse);
+                                        }
+                                    } else {
+                                        LOGGER.error("addProduct failed. Exception e = ", asyncResult.cause());
+                                        reply.fail(asyncResult.cause());
+                                    }
+                                });
+   }
+
+    // Insert a bounded batch of products with one bulk write
+    // Replies with one {"id": ...} or {"error": ...} result per product, in the same order
+    @Override
+    public void bulkAdd(Promise<JsonObject> reply, JsonArray products) {
+        List<JsonObject> documents = new ArrayList<>(products.size());
+        for (int i = 0; i < products.size(); i++) {
+            documents.add(ProductStore.versioned(products.getJsonObject(i)));
+        }
+
+        List<Future<String>> inserts = insertBatcher.insertMany(documents);
+
+        Future.join(inserts).onComplete(done -> {
+            JsonArray results = new JsonArray();
+            boolean inserted = false;
+            for (Future<String> insert : inserts) {
+                if (insert.succeeded()) {
+                    results.add(new JsonObject().put("id", insert.result()));
+                    inserted = true;
+                } else {
+                    results.add(new JsonObject().put("error", insert.cause().getMessage()));
+                }
+            }
+
+            JsonObject response = new JsonObject().put("results", results);
+            if (inserted) {
+                collectionChanged(null).onComplete(v -> reply.complete(response));
+            } else {
+                reply.complete(response);
+            }
+        });
+    }
+
+    @Override
+    public void update(Promise<JsonObject> reply, String productId, JsonObject updatedProduct, long expectedVersion) {
+        LOGGER.debug("Update Product request to MongoDB for Id " + productId);
+
+        JsonObject queryObject = new JsonObject().put("_id", productId);
+        if (expectedVersion > 0) {
+            queryObject.put(VERSION_FIELD, expectedVersion);
+        } else if (expectedVersion == 0) {
+            // Products written before versioning have no version field
+            queryObject.put(VERSION_FIELD, new JsonObject().put("$in", new JsonArray().add(0L).addNull()));
+        }
+
+        // The version is only ever moved forward here, never taken from the caller
+        JsonObject changes = updatedProduct.copy();
+        changes.remove(VERSION_FIELD);
+        changes.remove("_id");
+        changes.put(LAST_MODIFIED_FIELD, System.currentTimeMillis());
+        JsonObject updateRequest = new JsonObject()
+                .put("$set", changes)
+                .put("$inc", new JsonObject().put(VERSION_FIELD, 1L));
+
+        // One round trip that matches, changes and returns the product, so the version check
+        // and the change cannot be split by another writer
+        mongoClient.findOneAndUpdateWithOptions("products",
+                                                    queryObject,
+                                                    updateRequest,
+                                                    new FindOptions(),
+                                                    new UpdateOptions().setReturningNewDocument(true),
+                                                    asyncResult -> {
+
+                                                        if(asyncResult.failed()) {
+                                                            LOGGER.error("updateProduct failed for ID " + productId + " : " + asyncResult.cause().toString());
+                                                            reply.fail(asyncResult.cause());
+                                                            return;
+                                                        }
+
+                                                        JsonObject product = asyncResult.result();
+                                                        if (product != null) {
+                                                            withPlainId(product);
+                                                            collectionChanged(productId).onComplete(v -> reply.complete(product));
+                                                        } else if (expectedVersion < 0) {
+                                                            reply.complete(ProductStore.notFound());
+                                                        } else {
+                                                            replyUnmatched(reply, productId);
+                                                        }
+                                                    }
+                );
+
+    }
+
+    // Without filters the count comes from the collection metadata, like estimatedDocumentCount,
+    // rather than from scanning the _id index. With filters the matching products are counted.
+    @Override
+    public void count(Promise<JsonObject> reply, JsonObject inputJson) {
+        JsonObject filter = ProductQuery.filter(inputJson);
+        Future<Long> count;
+        if (filter.isEmpty()) {
+            count = mongoClient.runCommand("count", new JsonObject().put("count", "products"))
+                    .map(result -> result.getLong("n", 0L));
+        } else {
+            count = mongoClient.count("products", filter);
+        }
+
+        count.onComplete(asyncResult -> {
+            if (asyncResult.succeeded()) {
+                reply.complete(new JsonObject().put("count", asyncResult.result()).put("estimated", filter.isEmpty()));
+            } else {
+                LOGGER.error("countProducts failed : " + asyncResult.cause().toString());
+                reply.fail(asyncResult.cause());
+            }
+        });
+    }
+
+    // One aggregation computes every statistic on the Mongo side, only the result comes back
+    @Override
+    public void stats(Promise<JsonObject> reply, JsonObject inputJson) {
+        ProductStats stats = new ProductStats(inputJson);
+        JsonObject[] facets = {null};
+
+        ReadStream<JsonObject> results = mongoClient.aggregate("products", stats.pipeline(ProductQuery.filter(inputJson)));
+        results.exceptionHandler(e -> {
+            LOGGER.error("productStats failed : " + e);
+            reply.tryFail(e);
+        });
+        results.endHandler(v -> {
+            stats.addFacets(facets[0]);
+            reply.tryComplete(stats.toJson());
+        });
+        results.handler(result -> facets[0] = result);
+    }
+
+    // An update with an expected version matched nothing : tell a missing product from a newer one.
+    // Only this failure path pays for the second query.
+    private void replyUnmatched(Promise<JsonObject> reply, String productId) {
+        mongoClient.findOne("products",
+                                new JsonObject().put("_id", productId),
+                                new JsonObject().put(VERSION_FIELD, 1),
+                                asyncResult -> {
+                                    if (asyncResult.failed()) {
+                                        reply.fail(asyncResult.cause());
+                                    } else if (asyncResult.result() == null) {
+                                        reply.complete(ProductStore.notFound());
+                                    } else {
+                                        reply.complete(ProductStore.conflict(ProductStore.versionOf(asyncResult.result())));
+                                    }
+                                }
+        );
+    }
+
+    // A plain delete, the deleted product is not sent back since nobody reads it
+    @Override
+    public void delete(Promise<JsonObject> reply, String id) {
+        LOGGER.debug("Delete Product request to MongoDB for Id " + id);
+
+        mongoClient.removeDocument("products",
+                                        new JsonObject().put("_id",id),
+                                        asyncResult -> {
+
+                                            if(asyncResult.succeeded()) {
+                                                if (asyncResult.result() == null || asyncResult.result().getRemovedCount() == 0) {
+                                                    reply.complete(ProductStore.notFound());
+                                                    return;
+                                                }
+                                                JsonObject response = new JsonObject().put("deleted", true);
+                                                collectionChanged(id).onComplete(v -> reply.complete(response));
+
+                                            } else {
+                                                LOGGER.error("deleteProduct failed for ID " + id + " : " + asyncResult.cause().toString());
+                                                reply.fail(asyncResult.cause());
+                                            }
+
+                                        }
+                );
+
+    }
+}
@@ -0,0 +1,122 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.IndexOptions;
+import io.vertx.ext.mongo.MongoClient;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Indexes the product queries rely on, declared in mongodb.indexes as
+//   [{"key": {"number": 1, "_id": 1}}, {"key": {"description": "text"}, "name": ..., "unique": ..., "sparse": ...}]
+// and created in the background when missing, so a service starting against a new collection does not
+// serve its listings with collection scans, and a large collection is not locked while they are built.
+// Without mongodb.indexes the indexes of the listing sort and the ?q= search are declared.
+// Every Mongo service instance asks for them, but only the first one of the cluster checks and creates them.
+public final class ProductIndexes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProductIndexes.class);
+    private static final String COLLECTION = "products";
+    private static final String LOCK_NAME = MongoManager.serviceName() + ".indexes";
+    private static final String ENSURED_KEY = "ensured";
+    private static final long LOCK_WAIT_MILLIS = 1000;
+
+    private ProductIndexes() {
+    }
+
+    private static JsonArray declared(JsonObject config) {
+        JsonArray indexes = config.getJsonArray("mongodb.indexes");
+        if (indexes != null) {
+            return indexes;
+        }
+        return new JsonArray()
+                // Keyset pagination of the listing on (number, _id), number ranges and prefixes use its prefix
+                .add(new JsonObject().put("key", new JsonObject().put("number", 1).put("_id", 1)))
+                // ?q= description search
+                .add(new JsonObject().put("key", new JsonObject().put("description", "text")));
+    }
+
+    // ensure() once for the cluster : the instance that gets the lock checks the indexes, unless an instance
+    // did already, and the others go on without waiting for it
+    public static Future<Void> ensureOnce(Vertx vertx, MongoClient mongoClient, JsonObject config) {
+        return vertx.sharedData().getLockWithTimeout(LOCK_NAME, LOCK_WAIT_MILLIS)
+                .compose(lock -> vertx.sharedData().<String, Boolean>getAsyncMap(LOCK_NAME)
+                        .compose(ensured -> ensured.get(ENSURED_KEY)
+                                .compose(done -> {
+                                    if (Boolean.TRUE.equals(done)) {
+                                        return Future.<Void>succeededFuture();
+                                    }
+                                    return ensure(mongoClient, config).compose(v -> ensured.put(ENSURED_KEY, true));
+                                }))
+                        .onComplete(v -> lock.release()),
+                        // Another instance holds the lock and is checking them
+                        e -> Future.succeededFuture());
+    }
+
+    // Completes once every missing index was created or failed to, failures are only logged
+    public static Future<Void> ensure(MongoClient mongoClient, JsonObject config) {
+        JsonArray declared = declared(config);
+
+        return mongoClient.listIndexes(COLLECTION)
+                .otherwise(e -> {
+                    // No collection yet, every index is missing
+                    return new JsonArray();
+                })
+                .compose(existing -> {
+                    Set<String> names = new HashSet<>();
+                    for (int i = 0; i < existing.size(); i++) {
+                        names.add(existing.getJsonObject(i).getString("name"));
+                    }
+
+                    List<Future<Void>> created = new ArrayList<>();
+                    for (int i = 0; i < declared.size(); i++) {
+                        JsonObject index = declared.getJsonObject(i);
+                        String name = nameOf(index);
+                        if (!names.contains(name)) {
+                            created.add(create(mongoClient, index, name));
+                        }
+                    }
+                    return Future.join(created).mapEmpty();
+                });
+    }
+
+    private static Future<Void> create(MongoClient mongoClient, JsonObject index, String name) {
+        JsonObject key = index.getJsonObject("key");
+        IndexOptions options = new IndexOptions()
+                .background(true)
+                .name(name)
+                .unique(index.getBoolean("unique", false))
+                .sparse(index.getBoolean("sparse", false));
+
+        long startTime = System.currentTimeMillis();
+        return mongoClient.createIndexWithOptions(COLLECTION, key, options)
+                .onSuccess(v -> LOGGER.info("Created products index " + name + " " + key
+                                            + " in " + (System.currentTimeMillis() - startTime) + " ms"))
+                .onFailure(e -> LOGGER.error("Could not create products index " + name + " " + key, e));
+    }
+
+    // The configured name, or the one Mongo would give the index, so an index created without a name is found
+    private static String nameOf(JsonObject index) {
+        String name = index.getString("name");
+        if (name != null) {
+            return name;
+        }
+
+        StringBuilder generated = new StringBuilder();
+        JsonObject key = index.getJsonObject("key");
+        for (String field : key.fieldNames()) {
+            if (generated.length() > 0) {
+                generated.append('_');
+            }
+            generated.append(field).append('_').append(key.getValue(field));
+        }
+        return generated.toString();
+    }
+}
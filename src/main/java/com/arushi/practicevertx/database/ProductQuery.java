@@ -0,0 +1,165 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+// Mongo filter and projection of a product listing, built from the options of a FIND_ALL or
+// FIND_ALL_STREAM command, so every way of listing products, and every store, filters the same way :
+//   "numberPrefix" : number starts with, "numberFrom"/"numberTo" : number in [from, to)
+//   "q" : text search on the description, "fields" : array of the fields to return
+public final class ProductQuery {
+
+    private ProductQuery() {
+    }
+
+    public static JsonObject filter(JsonObject options) {
+        JsonObject query = new JsonObject();
+        JsonObject number = new JsonObject();
+
+        String prefix = options.getString("numberPrefix");
+        if (prefix != null) {
+            // Anchored and escaped, so Mongo reads it as an index range on number
+            number.put("$regex", "^" + escapeRegex(prefix));
+        }
+        if (options.getString("numberFrom") != null) {
+            number.put("$gte", options.getString("numberFrom"));
+        }
+        if (options.getString("numberTo") != null) {
+            number.put("$lt", options.getString("numberTo"));
+        }
+        if (!number.isEmpty()) {
+            query.put("number", number);
+        }
+
+        String text = options.getString("q");
+        if (text != null) {
+            query.put("$text", new JsonObject().put("$search", text));
+        }
+        return query;
+    }
+
+    // Both filters, or just the non empty one
+    public static JsonObject and(JsonObject filter, JsonObject other) {
+        if (filter.isEmpty()) {
+            return other;
+        }
+        if (other.isEmpty()) {
+            return filter;
+        }
+        return new JsonObject().put("$and", new JsonArray().add(filter).add(other));
+    }
+
+    // Projection of the requested fields, or null for whole products.
+    // number is always kept since listings are sorted, and paged, on it.
+    public static JsonObject projection(JsonObject options) {
+        JsonArray fields = options.getJsonArray("fields");
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+
+        JsonObject projection = new JsonObject().put("number", 1);
+        for (int i = 0; i < fields.size(); i++) {
+            projection.put(fields.getString(i), 1);
+        }
+        return projection;
+    }
+
+    // The same filter evaluated on a product, for stores that are not queried through Mongo.
+    // "q" matches when the description holds any of its words, ignoring case, which is close
+    // to a Mongo text search without its stemming, phrases and negations.
+    public static boolean matches(JsonObject options, JsonObject product) {
+        Object number = product.getValue("number");
+        return matchesNumber(options, number == null ? null : String.valueOf(number))
+                && (options.getString("q") == null || matchesText(options, product));
+    }
+
+    // The number part of the filter, which only needs the product number
+    public static boolean matchesNumber(JsonObject options, String number) {
+        String prefix = options.getString("numberPrefix");
+        if (prefix != null && (number == null || !number.startsWith(prefix))) {
+            return false;
+        }
+        String from = options.getString("numberFrom");
+        if (from != null && (number == null || number.compareTo(from) < 0)) {
+            return false;
+        }
+        String to = options.getString("numberTo");
+        return to == null || (number != null && number.compareTo(to) < 0);
+    }
+
+    private static boolean matchesText(JsonObject options, JsonObject product) {
+        Object description = product.getValue("description");
+        if (description == null) {
+            return false;
+        }
+        Set<String> words = words(String.valueOf(description));
+        for (String word : words(options.getString("q"))) {
+            if (words.contains(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The product reduced to the projection, as Mongo would return it, _id included
+    public static JsonObject project(JsonObject projection, JsonObject product) {
+        if (projection == null) {
+            return product;
+        }
+
+        JsonObject projected = new JsonObject();
+        if (product.containsKey("_id")) {
+            projected.put("_id", product.getValue("_id"));
+        }
+        for (String field : projection.fieldNames()) {
+            if (product.containsKey(field)) {
+                projected.put(field, product.getValue(field));
+            }
+        }
+        return projected;
+    }
+
+    // Opaque page token holding the sort key of the last product on the page
+    public static String encodeCursor(JsonObject lastProduct) {
+        JsonObject cursor = new JsonObject()
+                .put("number", lastProduct.getValue("number"))
+                .put("_id", lastProduct.getString("_id"));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.toBuffer().getBytes());
+    }
+
+    public static JsonObject decodeCursor(String token) {
+        JsonObject cursor = new JsonObject(Buffer.buffer(Base64.getUrlDecoder().decode(token)));
+        if (cursor.getString("_id") == null) {
+            throw new IllegalArgumentException("Cursor without _id");
+        }
+        return cursor;
+    }
+
+    private static Set<String> words(String text) {
+        Set<String> words = new HashSet<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("\\W+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static String escapeRegex(String literal) {
+        StringBuilder escaped = new StringBuilder(literal.length() + 8);
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Statistics of the products matching the ProductQuery options, for the STATS command :
+//   {"count": n,
+//    "byNumberPrefix": [{"prefix": "A", "count": n}, ...],                 the first "prefixLength" characters of number
+//    "byDescriptionLength": [{"from": 0, "to": 32, "count": n}, ..., {"from": 1024, "count": n}]}
+// The Mongo store computes them with one aggregation, other stores by going over their products,
+// and both build the reply here so it is the same whichever store answers.
+public final class ProductStats {
+
+    public static final int MAX_PREFIX_LENGTH = 8;
+    // Lower bounds of the description length buckets, in characters, the last bucket has no upper bound
+    private static final int[] DESCRIPTION_LENGTHS = {0, 32, 64, 128, 256, 512, 1024};
+
+    private final int prefixLength;
+    private final TreeMap<String, Long> byPrefix = new TreeMap<>();
+    private final long[] byLength = new long[DESCRIPTION_LENGTHS.length];
+    private long count = 0;
+
+    public ProductStats(JsonObject options) {
+        this.prefixLength = Math.max(1, Math.min(options.getInteger("prefixLength", 1), MAX_PREFIX_LENGTH));
+    }
+
+    // Count a product, by its number and its description
+    public void add(String number, Object description) {
+        count++;
+        byPrefix.merge(prefixOf(number == null ? "" : number), 1L, Long::sum);
+
+        String text = description == null ? "" : String.valueOf(description);
+        byLength[bucketOf(text.codePointCount(0, text.length()))]++;
+    }
+
+    // $match on the filter, then one $facet computing the three results in the same pass over the products.
+    // Lengths are counted in code points and a number prefix takes code points, like add() does.
+    JsonArray pipeline(JsonObject filter) {
+        JsonArray boundaries = new JsonArray();
+        for (int length : DESCRIPTION_LENGTHS) {
+            boundaries.add(length);
+        }
+        boundaries.add(Integer.MAX_VALUE);
+
+        JsonObject facets = new JsonObject()
+                .put("count", new JsonArray().add(new JsonObject().put("$count", "count")))
+                .put("byNumberPrefix", new JsonArray().add(new JsonObject().put("$group", new JsonObject()
+                        .put("_id", new JsonObject().put("$substrCP", new JsonArray()
+                                .add(asString("$number"))
+                                .add(0)
+                                .add(prefixLength)))
+                        .put("count", new JsonObject().put("$sum", 1)))))
+                .put("byDescriptionLength", new JsonArray().add(new JsonObject().put("$bucket", new JsonObject()
+                        .put("groupBy", new JsonObject().put("$strLenCP", asString("$description")))
+                        .put("boundaries", boundaries)
+                        .put("output", new JsonObject().put("count", new JsonObject().put("$sum", 1))))));
+
+        JsonArray pipeline = new JsonArray();
+        if (!filter.isEmpty()) {
+            pipeline.add(new JsonObject().put("$match", filter));
+        }
+        return pipeline.add(new JsonObject().put("$facet", facets));
+    }
+
+    // Take the results of the pipeline, null when nothing matched
+    void addFacets(JsonObject facets) {
+        if (facets == null) {
+            return;
+        }
+
+        JsonArray total = facets.getJsonArray("count", new JsonArray());
+        count += total.isEmpty() ? 0 : total.getJsonObject(0).getLong("count", 0L);
+
+        JsonArray prefixes = facets.getJsonArray("byNumberPrefix", new JsonArray());
+        for (int i = 0; i < prefixes.size(); i++) {
+            JsonObject prefix = prefixes.getJsonObject(i);
+            byPrefix.merge(String.valueOf(prefix.getValue("_id", "")), prefix.getLong("count", 0L), Long::sum);
+        }
+
+        JsonArray buckets = facets.getJsonArray("byDescriptionLength", new JsonArray());
+        for (int i = 0; i < buckets.size(); i++) {
+            JsonObject bucket = buckets.getJsonObject(i);
+            byLength[bucketOf(bucket.getInteger("_id", 0))] += bucket.getLong("count", 0L);
+        }
+    }
+
+    public JsonObject toJson() {
+        JsonArray prefixes = new JsonArray();
+        for (Map.Entry<String, Long> prefix : byPrefix.entrySet()) {
+            prefixes.add(new JsonObject().put("prefix", prefix.getKey()).put("count", prefix.getValue()));
+        }
+
+        // Every bucket, empty ones included, so charts keep the same axis
+        JsonArray lengths = new JsonArray();
+        for (int i = 0; i < DESCRIPTION_LENGTHS.length; i++) {
+            JsonObject bucket = new JsonObject().put("from", DESCRIPTION_LENGTHS[i]);
+            if (i + 1 < DESCRIPTION_LENGTHS.length) {
+                bucket.put("to", DESCRIPTION_LENGTHS[i + 1]);
+            }
+            lengths.add(bucket.put("count", byLength[i]));
+        }
+
+        return new JsonObject()
+                .put("count", count)
+                .put("byNumberPrefix", prefixes)
+                .put("byDescriptionLength", lengths);
+    }
+
+    private String prefixOf(String number) {
+        if (number.codePointCount(0, number.length()) <= prefixLength) {
+            return number;
+        }
+        return number.substring(0, number.offsetByCodePoints(0, prefixLength));
+    }
+
+    private static int bucketOf(int length) {
+        int bucket = 0;
+        while (bucket + 1 < DESCRIPTION_LENGTHS.length && length >= DESCRIPTION_LENGTHS[bucket + 1]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    // The field as a string, "" when it is missing
+    private static JsonObject asString(String field) {
+        return new JsonObject().put("$toString", new JsonObject().put("$ifNull", new JsonArray().add(field).add("")));
+    }
+}
@@ -0,0 +1,92 @@
+package com.arushi.practicevertx.database;
+
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+// Where the Mongo service keeps products. MongoManager handles the event bus side of each command
+// (admission, deadlines, metrics, replies) and hands the command itself to a store, which completes
+// the reply with the JSON answer or fails it when the store could not execute it.
+// Stores publish their changes to MongoManager.invalidationAddress() and MongoManager.changesAddress().
+public interface ProductStore {
+
+    // Every product carries a version, bumped on each change, and the time of that change.
+    // The product collection as a whole has a version too.
+    String VERSION_FIELD = "version";
+    String LAST_MODIFIED_FIELD = "lastModified";
+
+    // Products matching the ProductQuery options, optionally a keyset page of them, with the collection version
+    void findAll(Promise<JsonObject> reply, JsonObject options);
+
+    // Stream the products matching the ProductQuery options to options.address with a CursorStreamer
+    void streamAll(Promise<JsonObject> reply, JsonObject options);
+
+    // Replies not modified, without the product, when it is still at the "ifNoneMatch" version
+    void findById(Promise<JsonObject> reply, String id, long ifNoneMatch);
+
+    // Replies {"products": {id: product}} holding the products that were found
+    void findByIds(Promise<JsonObject> reply, JsonArray ids);
+
+    void add(Promise<JsonObject> reply, JsonObject product);
+
+    // Replies with one {"id": ...} or {"error": ...} result per product, in the same order
+    void bulkAdd(Promise<JsonObject> reply, JsonArray products);
+
+    // Apply the changes and reply with the product after them, in one step.
+    // With an expectedVersion >= 0 the product is only changed while it is at that version,
+    // otherwise the reply is conflict() with the version it is at.
+    void update(Promise<JsonObject> reply, String id, JsonObject changes, long expectedVersion);
+
+    // Replies {"deleted": true}, or notFound() when there was no such product
+    void delete(Promise<JsonObject> reply, String id);
+
+    // Replies {"count": n} with the number of products matching the ProductQuery options
+    void count(Promise<JsonObject> reply, JsonObject options);
+
+    // Replies with the ProductStats of the products matching the ProductQuery options
+    void stats(Promise<JsonObject> reply, JsonObject options);
+
+    // Get ready to serve, before the Mongo service takes its first command
+    default Future<Void> warmUp() {
+        return Future.succeededFuture();
+    }
+
+    // Query plan of the command options, for SlowQueryLog. Stores without query plans answer null.
+    default Future<JsonObject> explain(ProductCommand command, JsonObject options) {
+        return Future.succeededFuture();
+    }
+
+    void close();
+
+    // A new product starts at version 1
+    static JsonObject versioned(JsonObject product) {
+        return product.copy()
+                .put(VERSION_FIELD, 1L)
+                .put(LAST_MODIFIED_FIELD, System.currentTimeMillis());
+    }
+
+    // Version of a stored product, products written before versioning count as version 0
+    static long versionOf(JsonObject product) {
+        return product.getLong(VERSION_FIELD, 0L);
+    }
+
+    // Reply to an insert, with the version the product was stored at
+    static JsonObject added(String id, JsonObject document) {
+        return new JsonObject()
+                .put("id", id)
+                .put(VERSION_FIELD, document.getLong(VERSION_FIELD))
+                .put(LAST_MODIFIED_FIELD, document.getLong(LAST_MODIFIED_FIELD));
+    }
+
+    // Reply to an update or a delete of a product that does not exist
+    static JsonObject notFound() {
+        return new JsonObject().put("error", "No items found").put("notFound", true);
+    }
+
+    // Reply to an update of a product that is no longer at the expected version
+    static JsonObject conflict(long version) {
+        return new JsonObject().put("error", "Version conflict").put("conflict", true).put(VERSION_FIELD, version);
+    }
+}
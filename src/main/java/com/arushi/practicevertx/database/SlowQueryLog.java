@@ -0,0 +1,116 @@
+package com.arushi.practicevertx.database;
+
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Logs Mongo service commands slower than mongodb.slowQuery.thresholdMs, with the plan the store picked
+// for their query, so a listing that fell back to a collection scan shows up with the reason.
+// Every slow command is counted, only a mongodb.slowQuery.sampleRate fraction of them is logged and
+// explained, so a slow period does not add an explain per command to a Mongo already behind.
+// A threshold of 0 turns it off.
+class SlowQueryLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private static final Map<ProductCommand, LongAdder> SLOW_COMMANDS = new EnumMap<>(ProductCommand.class);
+
+    static {
+        for (ProductCommand command : ProductCommand.values()) {
+            SLOW_COMMANDS.put(command, Metrics.counter("mongo_slow_commands_total",
+                                                        "Mongo service commands over the slow query threshold",
+                                                        "command=\"" + command + "\""));
+        }
+    }
+
+    private final ProductStore store;
+    private final long thresholdNanos;
+    private final double sampleRate;
+    private final boolean explain;
+
+    SlowQueryLog(ProductStore store, JsonObject config) {
+        this.store = store;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("mongodb.slowQuery.thresholdMs", 200L));
+        this.sampleRate = config.getDouble("mongodb.slowQuery.sampleRate", 0.1);
+        this.explain = config.getBoolean("mongodb.slowQuery.explain", true);
+    }
+
+    void record(ProductCommand command, JsonObject options, long latencyNanos) {
+        if (thresholdNanos <= 0 || latencyNanos < thresholdNanos) {
+            return;
+        }
+
+        SLOW_COMMANDS.get(command).increment();
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        String slow = "Slow " + command + " " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + " ms " + summary(options);
+        if (!explain) {
+            LOGGER.warn(slow);
+            return;
+        }
+
+        store.explain(command, options).onComplete(asyncResult -> {
+            if (asyncResult.failed()) {
+                LOGGER.warn(slow + " (explain failed : " + asyncResult.cause().getMessage() + ")");
+            } else if (asyncResult.result() == null) {
+                LOGGER.warn(slow);
+            } else {
+                LOGGER.warn(slow + " plan " + plan(asyncResult.result()));
+            }
+        });
+    }
+
+    // The command options without the products it carries, which can be a whole bulk insert
+    private static JsonObject summary(JsonObject options) {
+        JsonObject summary = options.copy();
+        summary.remove("product");
+        JsonArray products = (JsonArray) summary.remove("products");
+        if (products != null) {
+            summary.put("products", products.size());
+        }
+        return summary;
+    }
+
+    // Stages of the winning plan from the last one to the first, like LIMIT <- FETCH <- IXSCAN number_1__id_1,
+    // with a COLLSCAN when no index was used
+    private static String plan(JsonObject queryPlanner) {
+        JsonObject stage = queryPlanner.getJsonObject("winningPlan");
+        // Plans run by the slot based engine nest the classic plan
+        if (stage != null && stage.containsKey("queryPlan")) {
+            stage = stage.getJsonObject("queryPlan");
+        }
+
+        StringBuilder plan = new StringBuilder();
+        while (stage != null) {
+            if (plan.length() > 0) {
+                plan.append(" <- ");
+            }
+            plan.append(stage.getString("stage"));
+            if (stage.getString("indexName") != null) {
+                plan.append(' ').append(stage.getString("indexName"));
+            }
+
+            JsonArray inputs = stage.getJsonArray("inputStages");
+            if (inputs != null && !inputs.isEmpty()) {
+                if (inputs.size() > 1) {
+                    plan.append(" (").append(inputs.size()).append(" inputs)");
+                }
+                stage = inputs.getJsonObject(0);
+            } else {
+                stage = stage.getJsonObject("inputStage");
+            }
+        }
+        return plan.length() > 0 ? plan.toString() : queryPlanner.encode();
+    }
+}
@@ -5,6 +5,10 @@ public class Product {
     private String id;
     private String number;
     private String description;
+    // Bumped on every change, starting at 1
+    private long version;
+    // Time of the last change, in milliseconds since the epoch
+    private long lastModified;
 
     public Product(String id, String number, String description) {
         this.id = id;
@@ -35,4 +39,20 @@ public class Product {
     public void setId(String id) {
         this.id = id;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
 }
@@ -0,0 +1,24 @@
+package com.arushi.practicevertx.eventbus;
+
+// Failure codes the Mongo service fails messages with, instead of replying,
+// when the command was not executed at all or could not be completed
+public final class FailureCodes {
+
+    // Rejected by admission control, safe to retry later
+    public static final int OVERLOADED = 503;
+
+    // Command header missing or unknown
+    public static final int UNKNOWN_COMMAND = 400;
+
+    // Mongo failed while executing the command
+    public static final int MONGO_ERROR = 500;
+
+    // Deadline of the command passed before it was executed, so it was dropped
+    public static final int DEADLINE_EXCEEDED = 504;
+
+    // Not sent at all by the API because the Mongo service circuit is open
+    public static final int CIRCUIT_OPEN = 599;
+
+    private FailureCodes() {
+    }
+}
@@ -0,0 +1,47 @@
+package com.arushi.practicevertx.eventbus;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Addresses that have consumers registered on a Vert.x instance of this JVM, so a sender can tell
+// whether a local only delivery would find one. The event bus does not expose its local handlers.
+// Consumers also put NODE_ID on their replies, so senders can tell where a command was handled.
+public final class LocalConsumers {
+
+    // Header of replies naming the JVM that handled the command
+    public static final String NODE_HEADER = "node";
+    public static final String NODE_ID = UUID.randomUUID().toString();
+
+    private static final Map<Vertx, Map<String, AtomicInteger>> CONSUMERS = new ConcurrentHashMap<>();
+
+    private LocalConsumers() {
+    }
+
+    public static void register(Vertx vertx, String address) {
+        CONSUMERS.computeIfAbsent(vertx, v -> new ConcurrentHashMap<>())
+                .computeIfAbsent(address, a -> new AtomicInteger())
+                .incrementAndGet();
+    }
+
+    public static void unregister(Vertx vertx, String address) {
+        Map<String, AtomicInteger> addresses = CONSUMERS.get(vertx);
+        if (addresses != null && addresses.containsKey(address)) {
+            addresses.get(address).decrementAndGet();
+        }
+    }
+
+    public static boolean has(Vertx vertx, String address) {
+        Map<String, AtomicInteger> addresses = CONSUMERS.get(vertx);
+        AtomicInteger count = addresses == null ? null : addresses.get(address);
+        return count != null && count.get() > 0;
+    }
+
+    public static boolean isLocal(MultiMap headers) {
+        return NODE_ID.equals(headers.get(NODE_HEADER));
+    }
+}
@@ -0,0 +1,64 @@
+package com.arushi.practicevertx.eventbus;
+
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+
+// Commands understood by the Mongo service. The command travels in a message header,
+// so the consumer can dispatch without looking into the body.
+public enum ProductCommand {
+
+    FIND_ALL,
+    FIND_ALL_STREAM,
+    FIND_BY_ID,
+    FIND_BY_IDS,
+    ADD,
+    BULK_INSERT,
+    UPDATE,
+    DELETE,
+    COUNT,
+    STATS;
+
+    public static final String HEADER = "cmd";
+    // Time, in epoch milliseconds, after which the sender no longer waits for the reply.
+    // Nodes of the cluster are expected to have their clocks in sync to well below command timeouts.
+    public static final String DEADLINE_HEADER = "deadline";
+
+    public DeliveryOptions deliveryOptions() {
+        return new DeliveryOptions().addHeader(HEADER, name());
+    }
+
+    // Options for a command that times out, and is dropped by the Mongo service, after timeoutMillis
+    public DeliveryOptions deliveryOptions(long timeoutMillis) {
+        return deliveryOptions()
+                .setSendTimeout(timeoutMillis)
+                .addHeader(DEADLINE_HEADER, String.valueOf(System.currentTimeMillis() + timeoutMillis));
+    }
+
+    // Deadline of a received message, or -1 if it has none
+    public static long deadlineOf(Message<?> message) {
+        String deadline = message.headers().get(DEADLINE_HEADER);
+        if (deadline == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(deadline);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Command of a received message, or null if the header is missing or unknown
+    public static ProductCommand of(Message<?> message) {
+        String name = message.headers().get(HEADER);
+        if (name == null) {
+            return null;
+        }
+
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
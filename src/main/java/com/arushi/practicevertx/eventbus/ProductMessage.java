@@ -0,0 +1,54 @@
+package com.arushi.practicevertx.eventbus;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+// Body of product commands and replies on the event bus.
+// Either a JSON object, or a raw buffer holding an already encoded JSON reply that the API writes
+// to the HTTP response as is, with its status in the STATUS_HEADER header.
+// Local deliveries hand over this same instance, so it must not be changed once sent.
+public final class ProductMessage {
+
+    // HTTP status of a raw reply
+    public static final String STATUS_HEADER = "status";
+    // Version of the product, or of the product collection for a list, a raw reply was read at
+    public static final String VERSION_HEADER = "version";
+
+    private JsonObject json;
+    private final Buffer raw;
+
+    private ProductMessage(JsonObject json, Buffer raw) {
+        this.json = json;
+        this.raw = raw;
+    }
+
+    public static ProductMessage of(JsonObject json) {
+        return new ProductMessage(json, null);
+    }
+
+    public static ProductMessage raw(Buffer raw) {
+        return new ProductMessage(null, raw);
+    }
+
+    public boolean isRaw() {
+        return raw != null;
+    }
+
+    // JSON body, parsed from the raw buffer on first use for raw messages
+    public JsonObject json() {
+        if (json == null) {
+            json = new JsonObject(raw);
+        }
+        return json;
+    }
+
+    // Encoded JSON body, encoded on each call for JSON messages
+    public Buffer raw() {
+        return raw != null ? raw : json.toBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return raw != null ? raw.toString() : json.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.arushi.practicevertx.eventbus;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.jackson.VertxModule;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Event bus codec for ProductMessage.
+// Between cluster nodes a JSON body is sent as length prefixed Smile (binary JSON) and a raw body as is,
+// within the same node the instance is passed by reference without any copy.
+public class ProductMessageCodec implements MessageCodec<ProductMessage, ProductMessage> {
+
+    private static final String NAME = "product-message";
+    private static final byte JSON = 0;
+    private static final byte RAW = 1;
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory()).registerModule(new VertxModule());
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+    // Safe to call from every verticle instance, the codec is only registered once per Vert.x instance
+    public static void register(Vertx vertx) {
+        try {
+            vertx.eventBus().registerDefaultCodec(ProductMessage.class, new ProductMessageCodec());
+        } catch (IllegalStateException e) {
+            // Already registered
+        }
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, ProductMessage message) {
+        if (message.isRaw()) {
+            Buffer raw = message.raw();
+            buffer.appendByte(RAW);
+            buffer.appendInt(raw.length());
+            buffer.appendBuffer(raw);
+            return;
+        }
+
+        try {
+            byte[] bytes = SMILE_MAPPER.writeValueAsBytes(message.json().getMap());
+            buffer.appendByte(JSON);
+            buffer.appendInt(bytes.length);
+            buffer.appendBytes(bytes);
+        } catch (IOException e) {
+            throw new EncodeException("Could not encode product message : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public ProductMessage decodeFromWire(int pos, Buffer buffer) {
+        byte type = buffer.getByte(pos);
+        int length = buffer.getInt(pos + 1);
+        int start = pos + 5;
+
+        if (type == RAW) {
+            return ProductMessage.raw(buffer.getBuffer(start, start + length));
+        }
+
+        try {
+            return ProductMessage.of(new JsonObject(SMILE_MAPPER.readValue(buffer.getBytes(start, start + length), MAP_TYPE)));
+        } catch (IOException e) {
+            throw new DecodeException("Could not decode product message : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public ProductMessage transform(ProductMessage message) {
+        return message;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
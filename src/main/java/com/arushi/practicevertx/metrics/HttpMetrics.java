@@ -0,0 +1,45 @@
+package com.arushi.practicevertx.metrics;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Route handlers recording HTTP server metrics, placed in front of the handlers they measure
+public final class HttpMetrics {
+
+    private static final LongAdder IN_FLIGHT = Metrics.gauge("http_server_requests_in_flight",
+                                                                "HTTP requests currently being handled", "");
+
+    private HttpMetrics() {
+    }
+
+    // Count requests in flight, meant for the root router
+    public static Handler<RoutingContext> inFlight() {
+        return routingContext -> {
+            IN_FLIGHT.increment();
+            routingContext.addEndHandler(v -> IN_FLIGHT.decrement());
+            routingContext.next();
+        };
+    }
+
+    // Time requests to one route, and count the ones that fail or end with a 5xx status
+    public static Handler<RoutingContext> track(String method, String route) {
+        String labels = "method=\"" + method + "\",route=\"" + route + "\"";
+        LatencyHistogram latency = Metrics.histogram("http_server_request_duration_seconds",
+                                                        "HTTP request latency by route", labels);
+        LongAdder errors = Metrics.counter("http_server_errors_total",
+                                            "HTTP requests failed or answered with a 5xx status", labels);
+
+        return routingContext -> {
+            long startTime = System.nanoTime();
+            routingContext.addEndHandler(result -> {
+                latency.recordSince(startTime);
+                if (result.failed() || routingContext.response().getStatusCode() >= 500) {
+                    errors.increment();
+                }
+            });
+            routingContext.next();
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package com.arushi.practicevertx.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram that any thread can record into without locking or allocating.
+// Values go to an HdrHistogram Recorder and are only folded into the cumulative histogram when read.
+public class LatencyHistogram {
+
+    private static final long MAX_VALUE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final Recorder recorder = new Recorder(MAX_VALUE_NANOS, 3);
+    private final Histogram cumulative = new Histogram(MAX_VALUE_NANOS, 3);
+    private final LongAdder sumNanos = new LongAdder();
+    private Histogram interval = null;
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE_NANOS);
+        recorder.recordValue(value);
+        sumNanos.add(value);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // Consistent copy of everything recorded so far
+    public synchronized Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        cumulative.add(interval);
+        return cumulative.copy();
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+}
@@ -0,0 +1,100 @@
+package com.arushi.practicevertx.metrics;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Process wide registry of latency histograms, counters and gauges, rendered in the Prometheus text format.
+// Look a metric up once and keep the reference, recording into it never allocates.
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private static final Map<String, Family<LatencyHistogram>> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Family<LongAdder>> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Family<LongAdder>> GAUGES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    // Labels are given as a Prometheus label list, e.g. route="/api/v1/products",method="GET"
+    public static LatencyHistogram histogram(String name, String help, String labels) {
+        return family(HISTOGRAMS, name, help).get(labels, LatencyHistogram::new);
+    }
+
+    public static LongAdder counter(String name, String help, String labels) {
+        return family(COUNTERS, name, help).get(labels, LongAdder::new);
+    }
+
+    // Gauge moved up and down by the caller, e.g. requests in flight
+    public static LongAdder gauge(String name, String help, String labels) {
+        return family(GAUGES, name, help).get(labels, LongAdder::new);
+    }
+
+    public static String scrape() {
+        StringBuilder builder = new StringBuilder(4096);
+
+        HISTOGRAMS.forEach((name, family) -> {
+            family.header(builder, name, "summary");
+            family.metrics.forEach((labels, histogram) -> {
+                Histogram snapshot = histogram.snapshot();
+                for (double quantile : QUANTILES) {
+                    builder.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                            .append("quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(snapshot.getValueAtPercentile(quantile * 100))).append('\n');
+                }
+                sample(builder, name + "_sum", labels, seconds(histogram.sumNanos()));
+                sample(builder, name + "_count", labels, String.valueOf(snapshot.getTotalCount()));
+            });
+        });
+
+        COUNTERS.forEach((name, family) -> {
+            family.header(builder, name, "counter");
+            family.metrics.forEach((labels, counter) -> sample(builder, name, labels, String.valueOf(counter.sum())));
+        });
+
+        GAUGES.forEach((name, family) -> {
+            family.header(builder, name, "gauge");
+            family.metrics.forEach((labels, gauge) -> sample(builder, name, labels, String.valueOf(gauge.sum())));
+        });
+
+        return builder.toString();
+    }
+
+    private static void sample(StringBuilder builder, String name, String labels, String value) {
+        builder.append(name);
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(double nanos) {
+        return String.valueOf(nanos / 1_000_000_000.0);
+    }
+
+    private static <T> Family<T> family(Map<String, Family<T>> families, String name, String help) {
+        return families.computeIfAbsent(name, n -> new Family<>(help));
+    }
+
+    private static class Family<T> {
+        private final String help;
+        private final Map<String, T> metrics = new ConcurrentSkipListMap<>();
+
+        private Family(String help) {
+            this.help = help;
+        }
+
+        private T get(String labels, Supplier<T> factory) {
+            return metrics.computeIfAbsent(labels, l -> factory.get());
+        }
+
+        private void header(StringBuilder builder, String name, String type) {
+            builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+}
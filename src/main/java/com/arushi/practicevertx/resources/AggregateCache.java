@@ -0,0 +1,67 @@
+package com.arushi.practicevertx.resources;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Short lived cache of count and stats replies, by command and filters. Dashboards polling them at once
+// share one Mongo aggregation per ttlMillis, the reply being pending included, and changes show up
+// after at most ttlMillis. Failed replies are not kept.
+// Each API verticle instance owns one and only uses it from its event loop, so it is not synchronized.
+public class AggregateCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public AggregateCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public Future<JsonObject> get(String key, Supplier<Future<JsonObject>> loader) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > now) {
+            return entry.reply;
+        }
+
+        Future<JsonObject> reply = loader.get();
+        if (ttlMillis <= 0) {
+            return reply;
+        }
+
+        if (entries.size() >= maxSize) {
+            removeExpired(now);
+        }
+        if (entries.size() < maxSize || entries.containsKey(key)) {
+            Entry loaded = new Entry(reply, now + ttlMillis);
+            entries.put(key, loaded);
+            reply.onFailure(e -> entries.remove(key, loaded));
+        }
+        return reply;
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Future<JsonObject> reply;
+        private final long expiresAt;
+
+        private Entry(Future<JsonObject> reply, long expiresAt) {
+            this.reply = reply;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
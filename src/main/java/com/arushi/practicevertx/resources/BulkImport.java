@@ -0,0 +1,135 @@
+package com.arushi.practicevertx.resources;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+// Imports an NDJSON request body one line at a time.
+// Products are sent on in batches and the request is paused while a batch is being written,
+// or while the response cannot take more results, so memory stays bounded whatever the body size.
+// One result line {"index": n, "id"|"error": ...} is streamed back per input line.
+public class BulkImport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkImport.class);
+
+    private final HttpServerRequest request;
+    private final HttpServerResponse response;
+    private final int batchSize;
+    private final BiConsumer<JsonArray, Handler<AsyncResult<JsonObject>>> batchWriter;
+    private final RecordParser parser;
+
+    private JsonArray batch = new JsonArray();
+    private final List<Integer> batchIndexes = new ArrayList<>();
+    private int lineIndex = 0;
+    private boolean inFlight = false;
+    private boolean ended = false;
+
+    public BulkImport(HttpServerRequest request, HttpServerResponse response, int batchSize, int maxRecordSize,
+                      BiConsumer<JsonArray, Handler<AsyncResult<JsonObject>>> batchWriter) {
+        this.request = request;
+        this.response = response;
+        this.batchSize = batchSize;
+        this.batchWriter = batchWriter;
+        this.parser = RecordParser.newDelimited("\n", request).maxRecordSize(maxRecordSize);
+    }
+
+    public void start() {
+        response.setStatusCode(200)
+                .setChunked(true)
+                .putHeader("content-type", "application/x-ndjson");
+
+        parser.exceptionHandler(this::fail);
+        parser.endHandler(v -> {
+            ended = true;
+            if (!inFlight) {
+                flush();
+            }
+        });
+        parser.handler(this::handleLine);
+    }
+
+    private void handleLine(Buffer line) {
+        int index = lineIndex++;
+        String text = line.toString().trim();
+        if (text.isEmpty()) {
+            return;
+        }
+
+        try {
+            batch.add(new JsonObject(text));
+            batchIndexes.add(index);
+        } catch (DecodeException | ClassCastException e) {
+            writeResult(new JsonObject().put("index", index).put("error", "Invalid JSON object"));
+            return;
+        }
+
+        if (batch.size() >= batchSize) {
+            parser.pause();
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            if (ended) {
+                response.end();
+            }
+            return;
+        }
+
+        JsonArray products = batch;
+        List<Integer> indexes = new ArrayList<>(batchIndexes);
+        batch = new JsonArray();
+        batchIndexes.clear();
+        inFlight = true;
+
+        batchWriter.accept(products, asyncResult -> {
+            inFlight = false;
+
+            if (asyncResult.failed()) {
+                fail(asyncResult.cause());
+                return;
+            }
+
+            JsonArray results = asyncResult.result().getJsonArray("results");
+            for (int i = 0; i < indexes.size(); i++) {
+                writeResult(results.getJsonObject(i).copy().put("index", indexes.get(i)));
+            }
+
+            if (ended) {
+                flush();
+            } else if (response.writeQueueFull()) {
+                response.drainHandler(v -> parser.resume());
+            } else {
+                parser.resume();
+            }
+        });
+    }
+
+    private void writeResult(JsonObject result) {
+        if (!response.closed()) {
+            response.write(result.toBuffer().appendString("\n"));
+        }
+    }
+
+    private void fail(Throwable cause) {
+        LOGGER.error("Bulk import failed after " + lineIndex + " lines", cause);
+        parser.pause();
+        if (!response.closed()) {
+            // Results already streamed cannot be taken back, cut the connection so the client sees the failure
+            response.reset();
+        }
+    }
+}
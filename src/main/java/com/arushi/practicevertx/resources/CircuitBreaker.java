@@ -0,0 +1,89 @@
+package com.arushi.practicevertx.resources;
+
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Fails Mongo service commands fast while the service looks unhealthy.
+// Opens after failureThreshold failures in a row, rejects every command for openMillis,
+// then lets a single trial command through : its success closes the circuit, its failure opens it again.
+// Each API verticle instance owns one and only uses it from its event loop, so it is not synchronized.
+// isOpen() may be asked from other threads, by the readiness probe.
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    // Number of open circuits across the API verticle instances of this process
+    private static final LongAdder OPEN_CIRCUITS = Metrics.gauge("eventbus_circuits_open",
+                                                                    "Mongo service circuits currently open", "");
+    private static final LongAdder REJECTED = Metrics.counter("eventbus_circuit_rejected_total",
+                                                                "Mongo service commands failed fast by an open circuit", "");
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private volatile State state = State.CLOSED;
+    private int failures = 0;
+    private volatile long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    // A failureThreshold of 0 turns the breaker off
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    // Open and still rejecting : once openMillis are over the next command is let through as a trial,
+    // so a circuit nobody sends commands to, like one of an instance out of rotation, does not stay open
+    public boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt < openMillis;
+    }
+
+    // Whether a command may be sent now, every command let through must be followed by succeeded() or failed()
+    public boolean tryAcquire() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+        }
+
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+
+        REJECTED.increment();
+        return false;
+    }
+
+    public void succeeded() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            LOGGER.info("Mongo service circuit closed");
+            state = State.CLOSED;
+            trialInFlight = false;
+            OPEN_CIRCUITS.decrement();
+        }
+    }
+
+    public void failed() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            open();
+        } else if (state == State.CLOSED && failureThreshold > 0 && ++failures >= failureThreshold) {
+            OPEN_CIRCUITS.increment();
+            open();
+        }
+    }
+
+    private void open() {
+        LOGGER.warn("Mongo service circuit open for " + openMillis + " ms after " + failures + " failures");
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+}
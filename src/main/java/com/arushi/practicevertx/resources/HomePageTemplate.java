@@ -0,0 +1,142 @@
+package com.arushi.practicevertx.resources;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Home page template, read once without blocking and split into literal and {placeholder} segments.
+// Rendering only appends the precomputed literal buffers and the escaped values into one buffer sized
+// up front for the literals and the values, so it is the only allocation besides the bytes of the values.
+public class HomePageTemplate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HomePageTemplate.class);
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\w+)\\}");
+
+    private final Vertx vertx;
+    private final String path;
+
+    private static final byte[] LT = "&lt;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GT = "&gt;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AMP = "&amp;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUOT = "&quot;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] APOS = "&#39;".getBytes(StandardCharsets.US_ASCII);
+
+    // literals[i] comes before the value of names[i], the last literal ends the page
+    private Buffer[] literals = {Buffer.buffer()};
+    private String[] names = new String[0];
+    private int literalLength = 0;
+    private Buffer source = Buffer.buffer();
+
+    private HomePageTemplate(Vertx vertx, String path) {
+        this.vertx = vertx;
+        this.path = path;
+    }
+
+    // Load and compile the template at the given file system or classpath path.
+    // With a reload interval above 0 the file is re-read periodically and recompiled when it changed (dev mode).
+    public static Future<HomePageTemplate> load(Vertx vertx, String path, long reloadIntervalMs) {
+        HomePageTemplate template = new HomePageTemplate(vertx, path);
+
+        return template.reload().map(v -> {
+            if (reloadIntervalMs > 0) {
+                vertx.setPeriodic(reloadIntervalMs, id -> template.reload());
+            }
+            return template;
+        });
+    }
+
+    public Buffer render(Map<String, String> values) {
+        String[] names = this.names;
+        Buffer[] literals = this.literals;
+
+        // Exact for values without markup characters, which is the usual case
+        int length = literalLength;
+        for (String name : names) {
+            String value = values.get(name);
+            if (value != null) {
+                length += value.length();
+            }
+        }
+
+        Buffer buffer = Buffer.buffer(length);
+        for (int i = 0; i < names.length; i++) {
+            buffer.appendBuffer(literals[i]);
+            String value = values.get(names[i]);
+            if (value != null) {
+                appendEscaped(buffer, value);
+            }
+        }
+        return buffer.appendBuffer(literals[names.length]);
+    }
+
+    private Future<Void> reload() {
+        return vertx.fileSystem().readFile(path)
+                .onFailure(e -> LOGGER.error("Could not read home page template " + path, e))
+                .map(content -> {
+                    if (!content.equals(source)) {
+                        compile(content);
+                        LOGGER.info("Home page template " + path + " compiled with " + names.length + " placeholders");
+                    }
+                    return null;
+                });
+    }
+
+    private void compile(Buffer content) {
+        String text = content.toString();
+        List<Buffer> compiledLiterals = new ArrayList<>();
+        List<String> compiledNames = new ArrayList<>();
+        int length = 0;
+        int position = 0;
+
+        Matcher matcher = PLACEHOLDER.matcher(text);
+        while (matcher.find()) {
+            Buffer literal = Buffer.buffer(text.substring(position, matcher.start()));
+            compiledLiterals.add(literal);
+            compiledNames.add(matcher.group(1));
+            length += literal.length();
+            position = matcher.end();
+        }
+
+        Buffer literal = Buffer.buffer(text.substring(position));
+        compiledLiterals.add(literal);
+        length += literal.length();
+
+        literals = compiledLiterals.toArray(new Buffer[0]);
+        names = compiledNames.toArray(new String[0]);
+        literalLength = length;
+        source = content;
+    }
+
+    // Values come from cookies, never let them inject markup.
+    // The markup characters are ASCII, and UTF-8 never uses ASCII bytes inside a multi byte character,
+    // so the value is escaped on its UTF-8 bytes, copying the runs between markup characters as they are.
+    private static void appendEscaped(Buffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] replacement;
+            switch (bytes[i]) {
+                case '<': replacement = LT; break;
+                case '>': replacement = GT; break;
+                case '&': replacement = AMP; break;
+                case '"': replacement = QUOT; break;
+                case '\'': replacement = APOS; break;
+                default: continue;
+            }
+
+            buffer.appendBytes(bytes, start, i - start).appendBytes(replacement);
+            start = i + 1;
+        }
+        buffer.appendBytes(bytes, start, bytes.length - start);
+    }
+}
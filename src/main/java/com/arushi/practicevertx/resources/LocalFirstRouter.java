@@ -0,0 +1,120 @@
+package com.arushi.practicevertx.resources;
+
+import com.arushi.practicevertx.eventbus.FailureCodes;
+import com.arushi.practicevertx.eventbus.LocalConsumers;
+import com.arushi.practicevertx.eventbus.ProductMessage;
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends Mongo service commands to a consumer of this JVM when there is a healthy one, over the cluster otherwise.
+// A clustered event bus round robins between every node with a consumer, even when one runs in this process,
+// which costs a network hop and encoding the command and its reply.
+// A command the local service refused without running it (no consumer left, or shed as overloaded) is sent
+// again over the cluster, and the local service is skipped for backoffMillis after it refused or timed out.
+// Each API verticle instance owns one and only uses it from its event loop, so it is not synchronized.
+public class LocalFirstRouter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalFirstRouter.class);
+
+    // Answered commands by where they were handled, the local ratio is local / (local + remote)
+    private static final LongAdder LOCAL = Metrics.counter("eventbus_dispatch_total",
+                                                            "Mongo service commands answered, by where they were handled",
+                                                            "route=\"local\"");
+    private static final LongAdder REMOTE = Metrics.counter("eventbus_dispatch_total",
+                                                            "Mongo service commands answered, by where they were handled",
+                                                            "route=\"remote\"");
+    private static final LongAdder FALLBACKS = Metrics.counter("eventbus_local_fallbacks_total",
+                                                                "Mongo service commands sent over the cluster after the local service refused them", "");
+
+    private final Vertx vertx;
+    private final String address;
+    private final boolean preferLocal;
+    private final long backoffMillis;
+    private long localUnhealthyUntil = 0;
+
+    public LocalFirstRouter(Vertx vertx, String address, boolean preferLocal, long backoffMillis) {
+        this.vertx = vertx;
+        this.address = address;
+        this.preferLocal = preferLocal;
+        this.backoffMillis = backoffMillis;
+    }
+
+    public void request(ProductMessage message, DeliveryOptions options, Handler<AsyncResult<Message<ProductMessage>>> replyHandler) {
+        if (!useLocal()) {
+            requestCluster(message, options, replyHandler);
+            return;
+        }
+
+        long sentAt = System.currentTimeMillis();
+        vertx.eventBus().<ProductMessage>request(address, message, new DeliveryOptions(options).setLocalOnly(true), asyncResult -> {
+            if (asyncResult.succeeded()) {
+                count(asyncResult.result());
+                replyHandler.handle(asyncResult);
+                return;
+            }
+
+            Throwable cause = asyncResult.cause();
+            if (isRefused(cause) || isTimeout(cause)) {
+                LOGGER.debug("Local Mongo service skipped for " + backoffMillis + " ms : " + cause.getMessage());
+                localUnhealthyUntil = System.currentTimeMillis() + backoffMillis;
+            }
+
+            // Only a command that was not run is sent again, and only within its deadline
+            long remaining = options.getSendTimeout() - (System.currentTimeMillis() - sentAt);
+            if (isRefused(cause) && remaining > 0) {
+                FALLBACKS.increment();
+                requestCluster(message, new DeliveryOptions(options).setSendTimeout(remaining), replyHandler);
+            } else {
+                replyHandler.handle(asyncResult);
+            }
+        });
+    }
+
+    // Let the event bus pick any consumer of the cluster, this node's included
+    public void requestCluster(ProductMessage message, DeliveryOptions options, Handler<AsyncResult<Message<ProductMessage>>> replyHandler) {
+        vertx.eventBus().<ProductMessage>request(address, message, options, asyncResult -> {
+            if (asyncResult.succeeded()) {
+                count(asyncResult.result());
+            }
+            replyHandler.handle(asyncResult);
+        });
+    }
+
+    private boolean useLocal() {
+        return preferLocal
+                && LocalConsumers.has(vertx, address)
+                && System.currentTimeMillis() >= localUnhealthyUntil;
+    }
+
+    private void count(Message<ProductMessage> reply) {
+        if (LocalConsumers.isLocal(reply.headers())) {
+            LOCAL.increment();
+        } else {
+            REMOTE.increment();
+        }
+    }
+
+    private static boolean isRefused(Throwable cause) {
+        if (!(cause instanceof ReplyException)) {
+            return false;
+        }
+        ReplyException replyException = (ReplyException) cause;
+        return replyException.failureType() == ReplyFailure.NO_HANDLERS
+                || (replyException.failureType() == ReplyFailure.RECIPIENT_FAILURE
+                        && replyException.failureCode() == FailureCodes.OVERLOADED);
+    }
+
+    private static boolean isTimeout(Throwable cause) {
+        return cause instanceof ReplyException && ((ReplyException) cause).failureType() == ReplyFailure.TIMEOUT;
+    }
+}
@@ -0,0 +1,116 @@
+package com.arushi.practicevertx.resources;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded LRU cache of encoded products by id, with a time to live per entry.
+// Each API verticle instance owns one and only uses it from its event loop, so it is not synchronized.
+public class ProductCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+
+    // Bumped on every invalidation, so a read that started before one does not cache stale data
+    private long generation = 0;
+
+    public ProductCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+
+        // Access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ProductCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    // Cached product, or null on a miss
+    public Entry get(String id) {
+        Entry entry = entries.get(id);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(id);
+            expirations++;
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry;
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    // Cache a product, and its version (-1 if unknown), read when the cache was at the given generation
+    public void put(String id, Buffer product, long version, long readGeneration) {
+        if (isEnabled() && readGeneration == generation) {
+            entries.put(id, new Entry(product, version, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    public void invalidate(String id) {
+        generation++;
+        if (entries.remove(id) != null) {
+            invalidations++;
+        }
+    }
+
+    public JsonObject stats() {
+        return new JsonObject()
+                .put("size", entries.size())
+                .put("maxSize", maxSize)
+                .put("ttlMillis", ttlMillis)
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("evictions", evictions)
+                .put("expirations", expirations)
+                .put("invalidations", invalidations);
+    }
+
+    public static class Entry {
+        private final Buffer product;
+        private final long version;
+        private final long expiresAt;
+
+        private Entry(Buffer product, long version, long expiresAt) {
+            this.product = product;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+        public Buffer product() {
+            return product;
+        }
+
+        public long version() {
+            return version;
+        }
+    }
+}
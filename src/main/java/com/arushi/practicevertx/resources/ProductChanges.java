@@ -0,0 +1,164 @@
+package com.arushi.practicevertx.resources;
+
+import com.arushi.practicevertx.database.MongoManager;
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-sent events feed of product changes for one API verticle.
+// A single event bus consumer receives each change published by the Mongo service once, encodes it once,
+// and writes it to every subscribed response. The latest changes are kept in a ring, so a client that
+// reconnects with Last-Event-ID gets what it missed. When its last event is no longer in the ring it gets
+// a "reset" event instead, telling it to reload the product list. Every subscriber gets one when the
+// Mongo service could not resume its change stream, and the ring then starts over.
+// Only used from the verticle's event loop, so it is not synchronized.
+public class ProductChanges {
+
+    private static final LongAdder SUBSCRIBERS = Metrics.gauge("sse_subscribers",
+                                                                "Clients subscribed to the product changes feed", "");
+    private static final LongAdder DROPPED = Metrics.counter("sse_subscribers_dropped_total",
+                                                                "Change feed clients disconnected for not keeping up", "");
+
+    private static final Buffer RESET = Buffer.buffer("event: reset\ndata: {}\n\n");
+    private static final Buffer HEARTBEAT = Buffer.buffer(": ping\n\n");
+
+    private final Vertx vertx;
+    private final int bufferSize;
+    private final long heartbeatMillis;
+
+    private final ArrayDeque<Event> recent = new ArrayDeque<>();
+    private final Set<HttpServerResponse> subscribers = new LinkedHashSet<>();
+
+    public ProductChanges(Vertx vertx, int bufferSize, long heartbeatMillis) {
+        this.vertx = vertx;
+        this.bufferSize = bufferSize;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public void start() {
+        vertx.eventBus().<JsonObject>consumer(MongoManager.changesAddress(), message -> onChange(message.body()));
+
+        // Comment lines keep idle connections from being closed by proxies
+        if (heartbeatMillis > 0) {
+            vertx.setPeriodic(heartbeatMillis, id -> {
+                for (HttpServerResponse response : new ArrayList<>(subscribers)) {
+                    write(response, HEARTBEAT);
+                }
+            });
+        }
+    }
+
+    public void subscribe(RoutingContext routingContext) {
+        HttpServerResponse response = routingContext.response();
+        response.setStatusCode(200)
+                .setChunked(true)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+                .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+                // Never compressed, a compressor would buffer the events
+                .putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+
+        String lastEventId = routingContext.request().getHeader("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = routingContext.request().getParam("lastEventId");
+        }
+
+        if (lastEventId == null) {
+            // Send the headers now, so the client knows it is subscribed
+            response.write(Buffer.buffer(": subscribed\n\n"));
+        } else {
+            replayAfter(response, lastEventId);
+        }
+
+        subscribers.add(response);
+        SUBSCRIBERS.increment();
+        response.closeHandler(v -> unsubscribe(response));
+    }
+
+    private void replayAfter(HttpServerResponse response, String lastEventId) {
+        List<Event> missed = new ArrayList<>();
+        boolean found = false;
+
+        for (Iterator<Event> events = recent.descendingIterator(); events.hasNext(); ) {
+            Event event = events.next();
+            if (event.id.equals(lastEventId)) {
+                found = true;
+                break;
+            }
+            missed.add(event);
+        }
+
+        if (!found) {
+            response.write(RESET);
+            return;
+        }
+        for (int i = missed.size() - 1; i >= 0; i--) {
+            response.write(missed.get(i).encoded);
+        }
+    }
+
+    private void onChange(JsonObject change) {
+        if (change.getBoolean("reset", false)) {
+            recent.clear();
+            for (HttpServerResponse response : new ArrayList<>(subscribers)) {
+                write(response, RESET);
+            }
+            return;
+        }
+
+        String id = change.getString("id");
+        Buffer encoded = Buffer.buffer()
+                .appendString("id: ").appendString(id)
+                .appendString("\nevent: change\ndata: ")
+                .appendBuffer(change.toBuffer())
+                .appendString("\n\n");
+
+        recent.addLast(new Event(id, encoded));
+        if (recent.size() > bufferSize) {
+            recent.removeFirst();
+        }
+
+        for (HttpServerResponse response : new ArrayList<>(subscribers)) {
+            write(response, encoded);
+        }
+    }
+
+    // A client that cannot keep up is disconnected rather than buffered for,
+    // it reconnects with its Last-Event-ID and catches up from the ring
+    private void write(HttpServerResponse response, Buffer data) {
+        if (response.writeQueueFull()) {
+            DROPPED.increment();
+            unsubscribe(response);
+            response.reset();
+            return;
+        }
+        response.write(data);
+    }
+
+    private void unsubscribe(HttpServerResponse response) {
+        if (subscribers.remove(response)) {
+            SUBSCRIBERS.decrement();
+        }
+    }
+
+    private static class Event {
+        private final String id;
+        private final Buffer encoded;
+
+        private Event(String id, Buffer encoded) {
+            this.id = id;
+            this.encoded = encoded;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.arushi.practicevertx.resources;
+
+import com.arushi.practicevertx.database.ProductStore;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Loads products by id for one API verticle, from its event loop only.
+// Concurrent lookups of the same id share one load (single flight), and all the ids asked for
+// during one event loop tick are sent together, so the Mongo service runs one $in query for them.
+// An id asked for alone is read on its own, and its product kept as the Mongo service encoded it.
+public class ProductLoader {
+
+    private final Vertx vertx;
+    private final int maxBatchSize;
+    // Sends the ids and answers {"products": {id: product}} for the ones found
+    private final BiConsumer<JsonArray, Handler<AsyncResult<JsonObject>>> batchReader;
+    // Sends one id and answers the encoded product, or null if there is none
+    private final BiConsumer<String, Handler<AsyncResult<Loaded>>> reader;
+
+    private final Map<String, Promise<Loaded>> inFlight = new HashMap<>();
+    private List<String> pending = new ArrayList<>();
+
+    public ProductLoader(Vertx vertx,
+                         int maxBatchSize,
+                         BiConsumer<JsonArray, Handler<AsyncResult<JsonObject>>> batchReader,
+                         BiConsumer<String, Handler<AsyncResult<Loaded>>> reader) {
+        this.vertx = vertx;
+        this.maxBatchSize = maxBatchSize;
+        this.batchReader = batchReader;
+        this.reader = reader;
+    }
+
+    // Product with the given id, or null if there is none
+    public Future<Loaded> load(String id) {
+        Promise<Loaded> load = inFlight.get(id);
+        if (load != null) {
+            return load.future();
+        }
+
+        load = Promise.promise();
+        inFlight.put(id, load);
+        if (pending.isEmpty()) {
+            // Runs once the current tick is done, with every id asked for in the meantime
+            vertx.runOnContext(v -> flush());
+        }
+        pending.add(id);
+        return load.future();
+    }
+
+    // Stop sharing a load that started before the product changed, later lookups start a new one
+    public void forget(String id) {
+        if (!pending.contains(id)) {
+            inFlight.remove(id);
+        }
+    }
+
+    private void flush() {
+        List<String> ids = pending;
+        pending = new ArrayList<>();
+
+        for (int from = 0; from < ids.size(); from += maxBatchSize) {
+            read(ids.subList(from, Math.min(from + maxBatchSize, ids.size())));
+        }
+    }
+
+    private void read(List<String> ids) {
+        if (ids.size() == 1) {
+            readOne(ids.get(0));
+            return;
+        }
+
+        List<Promise<Loaded>> loads = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            loads.add(inFlight.get(id));
+        }
+
+        batchReader.accept(new JsonArray(new ArrayList<>(ids)), asyncResult -> {
+            JsonObject found = null;
+            Throwable failure = asyncResult.cause();
+
+            if (asyncResult.succeeded()) {
+                found = asyncResult.result().getJsonObject("products");
+                if (found == null) {
+                    failure = new IllegalStateException(asyncResult.result().getString("error", "No products in reply"));
+                }
+            }
+
+            for (int i = 0; i < ids.size(); i++) {
+                Promise<Loaded> load = loads.get(i);
+                // A load forgotten meanwhile is no longer the one later lookups share
+                inFlight.remove(ids.get(i), load);
+
+                if (found != null) {
+                    JsonObject product = found.getJsonObject(ids.get(i));
+                    load.complete(product == null ? null : new Loaded(product.toBuffer(), versionOf(product)));
+                } else {
+                    load.fail(failure);
+                }
+            }
+        });
+    }
+
+    private void readOne(String id) {
+        Promise<Loaded> load = inFlight.get(id);
+
+        reader.accept(id, asyncResult -> {
+            inFlight.remove(id, load);
+            load.handle(asyncResult);
+        });
+    }
+
+    // Version field of a product, or -1 for a product written before versioning
+    private static long versionOf(JsonObject product) {
+        return product.getValue(ProductStore.VERSION_FIELD) instanceof Number ? product.getLong(ProductStore.VERSION_FIELD) : -1;
+    }
+
+    // A product encoded once, with its version or -1
+    public static final class Loaded {
+        private final Buffer product;
+        private final long version;
+
+        public Loaded(Buffer product, long version) {
+            this.product = product;
+            this.version = version;
+        }
+
+        public Buffer product() {
+            return product;
+        }
+
+        public long version() {
+            return version;
+        }
+    }
+}
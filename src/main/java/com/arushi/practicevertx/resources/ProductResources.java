@@ -1,41 +1,465 @@
 package com.arushi.practicevertx.resources;
 
+import com.arushi.practicevertx.database.CursorStreamer;
 import com.arushi.practicevertx.database.MongoManager;
+import com.arushi.practicevertx.database.ProductStats;
+import com.arushi.practicevertx.database.ProductStore;
 import com.arushi.practicevertx.entity.Product;
+import com.arushi.practicevertx.eventbus.FailureCodes;
+import com.arushi.practicevertx.eventbus.ProductCommand;
+import com.arushi.practicevertx.eventbus.ProductMessage;
+import com.arushi.practicevertx.eventbus.ProductMessageCodec;
+import com.arushi.practicevertx.metrics.HttpMetrics;
+import com.arushi.practicevertx.metrics.LatencyHistogram;
+import com.arushi.practicevertx.metrics.Metrics;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
 import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.impl.logging.Logger;
 import io.vertx.core.impl.logging.LoggerFactory;
 import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
 
 public class ProductResources {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProductResources.class);
     private Vertx vertx = null;
     private final String serviceName = MongoManager.serviceName();
+    private final ProductCache productCache;
+    private final AggregateCache aggregateCache;
+    private ProductLoader productLoader = null;
+    private ProductChanges productChanges = null;
+    private final int changesBufferSize;
+    private final long changesHeartbeatMs;
+    private final int loaderBatchSize;
+    private final long bodyLimit;
+    private final int bulkBatchSize;
+    private final int bulkMaxRecordSize;
+    private final String retryAfterSeconds;
+    private final Map<ProductCommand, Long> timeouts = new EnumMap<>(ProductCommand.class);
+    private final long hedgeDelayMs;
+    private final CircuitBreaker circuitBreaker;
+    private final boolean preferLocal;
+    private final long localBackoffMs;
+    private LocalFirstRouter router = null;
+    private final int cacheWarmupSize;
+    // Read by the readiness probe from any event loop
+    private volatile boolean ready = false;
+    // Last product collection version heard of, trusted for conditional list requests until it expires.
+    // It expires like cached products do, in case a change notification was missed.
+    private long collectionVersion = -1;
+    private long collectionVersionExpiresAt = 0;
+    private final long collectionVersionTtlMillis;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final long WARMUP_RETRY_MS = 200;
+    private static final int MAX_FILTER_LENGTH = 256;
+    private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    // Event bus round trip metrics, per command
+    private static final LongAdder BUS_IN_FLIGHT = Metrics.gauge("eventbus_requests_in_flight",
+                                                                    "Mongo service commands waiting for a reply", "");
+    private static final Map<ProductCommand, LatencyHistogram> BUS_LATENCY = new EnumMap<>(ProductCommand.class);
+    private static final Map<ProductCommand, LongAdder> BUS_ERRORS = new EnumMap<>(ProductCommand.class);
+    private static final Map<ProductCommand, LongAdder> BUS_HEDGES = new EnumMap<>(ProductCommand.class);
+    // Reads that are safe to send twice
+    private static final Set<ProductCommand> HEDGED_COMMANDS = EnumSet.of(ProductCommand.FIND_BY_ID, ProductCommand.FIND_BY_IDS);
+
+    static {
+        for (ProductCommand command : ProductCommand.values()) {
+            String labels = "command=\"" + command + "\"";
+            BUS_LATENCY.put(command, Metrics.histogram("eventbus_request_duration_seconds",
+                                                        "Mongo service command round trip over the event bus", labels));
+            BUS_ERRORS.put(command, Metrics.counter("eventbus_request_errors_total",
+                                                        "Mongo service commands that failed or timed out", labels));
+            BUS_HEDGES.put(command, Metrics.counter("eventbus_hedged_requests_total",
+                                                        "Mongo service commands sent a second time because the first was slow", labels));
+        }
+    }
+
+    public ProductResources(JsonObject config) {
+        this.productCache = new ProductCache(config.getInteger("products.cache.maxSize", 10000),
+                                                config.getLong("products.cache.ttlSeconds", 60L) * 1000);
+        this.aggregateCache = new AggregateCache(config.getInteger("products.aggregates.maxSize", 256),
+                                                    config.getLong("products.aggregates.ttlMs", 5000L));
+        this.loaderBatchSize = config.getInteger("products.loader.maxBatchSize", 100);
+        this.changesBufferSize = config.getInteger("products.changes.bufferSize", 1000);
+        this.changesHeartbeatMs = config.getLong("products.changes.heartbeatMs", 15000L);
+        this.bodyLimit = config.getLong("http.bodyLimitBytes", 1024L * 1024);
+        this.bulkBatchSize = config.getInteger("products.bulk.batchSize", 500);
+        this.bulkMaxRecordSize = config.getInteger("products.bulk.maxRecordBytes", 64 * 1024);
+        this.retryAfterSeconds = String.valueOf(config.getInteger("http.retryAfterSeconds", 1));
+        this.collectionVersionTtlMillis = config.getLong("products.cache.ttlSeconds", 60L) * 1000;
+
+        // Deadline of each command, eventbus.timeouts can override the default per command
+        long defaultTimeout = config.getLong("eventbus.timeoutMs", 5000L);
+        JsonObject commandTimeouts = config.getJsonObject("eventbus.timeouts", new JsonObject());
+        for (ProductCommand command : ProductCommand.values()) {
+            timeouts.put(command, commandTimeouts.getLong(command.name(), defaultTimeout));
+        }
+        // A read still unanswered after this long is also sent to another Mongo service instance, 0 is off
+        this.hedgeDelayMs = config.getLong("eventbus.hedgeDelayMs", 0L);
+        this.circuitBreaker = new CircuitBreaker(config.getInteger("eventbus.circuit.failureThreshold", 5),
+                                                    config.getLong("eventbus.circuit.openMs", 5000L));
+        // Commands go to a Mongo service in this JVM while it is healthy, rather than to any node of the cluster
+        this.preferLocal = config.getBoolean("eventbus.preferLocal", true);
+        this.localBackoffMs = config.getLong("eventbus.localBackoffMs", 1000L);
+        this.cacheWarmupSize = config.getInteger("products.cache.warmup", 100);
+    }
 
     public Router getAPISubRouter(Vertx vertx){
         this.vertx = vertx;
+        ProductMessageCodec.register(vertx);
+        router = new LocalFirstRouter(vertx, serviceName, preferLocal, localBackoffMs);
+        productLoader = new ProductLoader(vertx,
+                                            loaderBatchSize,
+                                            (ids, resultHandler) -> sendCommand(ProductCommand.FIND_BY_IDS,
+                                                                                new JsonObject().put("ids", ids),
+                                                                                resultHandler),
+                                            this::readProduct);
+        productChanges = new ProductChanges(vertx, changesBufferSize, changesHeartbeatMs);
+        productChanges.start();
+
+        // Drop cached products as soon as any Mongo service instance changes them
+        vertx.eventBus().<JsonObject>consumer(MongoManager.invalidationAddress(), message -> {
+            JsonObject change = message.body();
+            if (change.getString("id") != null) {
+                productCache.invalidate(change.getString("id"));
+                productLoader.forget(change.getString("id"));
+            }
+
+            Long version = change.getLong("collectionVersion");
+            if (version == null) {
+                // Changed without a new version, stop trusting the one we have
+                collectionVersion = -1;
+                collectionVersionExpiresAt = 0;
+            } else {
+                rememberCollectionVersion(version);
+            }
+        });
 
         Router apiSubRouter = Router.router(vertx);
 
         // API routing
         apiSubRouter.route("/*").handler(this::defaultProcessorForAllAPI);
-        apiSubRouter.route("/v1/products*").handler(BodyHandler.create());
-        apiSubRouter.get("/v1/products").handler(this::getAllProducts);
-        apiSubRouter.get("/v1/products/:id").handler(this::getProductById);
-        apiSubRouter.post("/v1/products").handler(this::addProduct);
-        apiSubRouter.put("/v1/products/:id").handler(this::updateProductById);
-        apiSubRouter.delete("/v1/products/:id").handler(this::deleteProductById);
+        // Bulk import reads its body as a stream, so it is routed before the body is buffered
+        apiSubRouter.post("/v1/products/_bulk").handler(HttpMetrics.track("POST", "/api/v1/products/_bulk")).handler(this::bulkAddProducts);
+        apiSubRouter.route("/v1/products*").handler(BodyHandler.create().setBodyLimit(bodyLimit));
+        apiSubRouter.get("/v1/cache/stats").handler(HttpMetrics.track("GET", "/api/v1/cache/stats")).handler(this::getCacheStats);
+        apiSubRouter.get("/v1/products").handler(HttpMetrics.track("GET", "/api/v1/products")).handler(this::getAllProducts);
+        apiSubRouter.get("/v1/products/_count").handler(HttpMetrics.track("GET", "/api/v1/products/_count")).handler(this::countProducts);
+        apiSubRouter.get("/v1/products/_stats").handler(HttpMetrics.track("GET", "/api/v1/products/_stats")).handler(this::getProductStats);
+        // Long lived, so not in the request duration metrics
+        apiSubRouter.get("/v1/products/changes").handler(productChanges::subscribe);
+        apiSubRouter.get("/v1/products/:id").handler(HttpMetrics.track("GET", "/api/v1/products/:id")).handler(this::getProductById);
+        apiSubRouter.post("/v1/products").handler(HttpMetrics.track("POST", "/api/v1/products")).handler(this::addProduct);
+        apiSubRouter.put("/v1/products/:id").handler(HttpMetrics.track("PUT", "/api/v1/products/:id")).handler(this::updateProductById);
+        apiSubRouter.delete("/v1/products/:id").handler(HttpMetrics.track("DELETE", "/api/v1/products/:id")).handler(this::deleteProductById);
 
         return apiSubRouter;
     }
 
+    // Wait until a Mongo service answers, caching the first products.cache.warmup products of the listing
+    // on the way. Completes once warm, or after timeoutMillis, and then keeps trying in the background.
+    // Goes around the circuit breaker, which would open while the Mongo service is still starting.
+    public Future<Void> warmUp(long timeoutMillis) {
+        Promise<Void> done = Promise.promise();
+        warmUpAttempt(done, System.currentTimeMillis() + timeoutMillis);
+        return done.future();
+    }
+
+    private void warmUpAttempt(Promise<Void> done, long deadline) {
+        long cacheGeneration = productCache.generation();
+        JsonObject payload = new JsonObject().put("limit", Math.max(cacheWarmupSize, 1));
+
+        router.request(ProductMessage.of(payload),
+                        ProductCommand.FIND_ALL.deliveryOptions(timeouts.get(ProductCommand.FIND_ALL)),
+                        asyncResult -> {
+                            if (asyncResult.succeeded()) {
+                                JsonArray products = asyncResult.result().body().json().getJsonArray("products", new JsonArray());
+                                for (int i = 0; i < products.size() && i < cacheWarmupSize; i++) {
+                                    JsonObject product = products.getJsonObject(i);
+                                    productCache.put(product.getString("_id"), product.toBuffer(), versionOf(product), cacheGeneration);
+                                }
+                                ready = true;
+                                done.tryComplete();
+                                return;
+                            }
+
+                            if (System.currentTimeMillis() >= deadline && done.tryComplete()) {
+                                LOGGER.warn("No Mongo service answered in time, serving anyway : " + asyncResult.cause().getMessage());
+                            }
+                            vertx.setTimer(WARMUP_RETRY_MS, id -> warmUpAttempt(done, deadline));
+                        });
+    }
+
+    // Warmed up, and the Mongo service is not failing, see Readiness for the process
+    public boolean isReady() {
+        return ready && !circuitBreaker.isOpen();
+    }
+
+    // Send a command to the Mongo service and hand back the JSON reply
+    private void sendCommand(ProductCommand command, JsonObject payload, Handler<AsyncResult<JsonObject>> replyHandler) {
+        request(command, payload, asyncResult -> replyHandler.handle(asyncResult.map(message -> message.body().json())));
+    }
+
+    // Send a command asking for a raw reply : the encoded JSON body plus its HTTP status
+    private void sendRawCommand(ProductCommand command, JsonObject payload, Handler<AsyncResult<Message<ProductMessage>>> replyHandler) {
+        request(command, payload.put("raw", true), replyHandler);
+    }
+
+    // Every command carries a deadline, goes through the circuit breaker, and reads may be hedged
+    private void request(ProductCommand command, JsonObject payload, Handler<AsyncResult<Message<ProductMessage>>> replyHandler) {
+        if (!circuitBreaker.tryAcquire()) {
+            replyHandler.handle(Future.failedFuture(new ReplyException(ReplyFailure.RECIPIENT_FAILURE,
+                                                                        FailureCodes.CIRCUIT_OPEN,
+                                                                        "Mongo service circuit open")));
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        BUS_IN_FLIGHT.increment();
+
+        long timeout = timeouts.get(command);
+        DeliveryOptions options = command.deliveryOptions(timeout);
+        ProductMessage message = ProductMessage.of(payload);
+
+        Promise<Message<ProductMessage>> reply = Promise.promise();
+        // First success wins, a failure only counts once every request sent has failed
+        int[] outstanding = {1};
+        Handler<AsyncResult<Message<ProductMessage>>> onReply = asyncResult -> {
+            outstanding[0]--;
+            if (asyncResult.succeeded()) {
+                reply.tryComplete(asyncResult.result());
+            } else if (outstanding[0] == 0) {
+                reply.tryFail(asyncResult.cause());
+            }
+        };
+
+        long hedgeTimer = -1;
+        if (hedgeDelayMs > 0 && hedgeDelayMs < timeout && HEDGED_COMMANDS.contains(command)) {
+            hedgeTimer = vertx.setTimer(hedgeDelayMs, id -> {
+                if (!reply.future().isComplete()) {
+                    BUS_HEDGES.get(command).increment();
+                    outstanding[0]++;
+                    // Same deadline as the first request, to whichever instance the cluster picks
+                    router.requestCluster(message,
+                                            new DeliveryOptions(options).setSendTimeout(timeout - hedgeDelayMs),
+                                            onReply);
+                }
+            });
+        }
+
+        long hedge = hedgeTimer;
+        reply.future().onComplete(asyncResult -> {
+            if (hedge >= 0) {
+                vertx.cancelTimer(hedge);
+            }
+            BUS_IN_FLIGHT.decrement();
+            BUS_LATENCY.get(command).recordSince(startTime);
+            if (asyncResult.failed()) {
+                BUS_ERRORS.get(command).increment();
+            }
+
+            if (asyncResult.failed() && isUnhealthy(asyncResult.cause())) {
+                circuitBreaker.failed();
+            } else {
+                circuitBreaker.succeeded();
+            }
+
+            replyHandler.handle(asyncResult);
+        });
+
+        router.request(message, options, onReply);
+    }
+
+    // Failures that tell the Mongo service is not working, as opposed to one refusing a command
+    private boolean isUnhealthy(Throwable cause) {
+        if (!(cause instanceof ReplyException)) {
+            return true;
+        }
+
+        ReplyException replyException = (ReplyException) cause;
+        if (replyException.failureType() != ReplyFailure.RECIPIENT_FAILURE) {
+            // Timed out, or no Mongo service instance at all
+            return true;
+        }
+        return replyException.failureCode() == FailureCodes.MONGO_ERROR
+                || replyException.failureCode() == FailureCodes.DEADLINE_EXCEEDED;
+    }
+
+    // End with a JSON body, compact unless ?pretty=true was asked for
+    private void endJson(RoutingContext routingContext, int statusCode, Object body) {
+        endBuffer(routingContext, statusCode, isPretty(routingContext) ? Buffer.buffer(Json.encodePrettily(body)) : Json.encodeToBuffer(body));
+    }
+
+    // End with an already encoded JSON body, only parsed again if pretty output was asked for
+    private void endRaw(RoutingContext routingContext, int statusCode, Buffer body) {
+        if (isPretty(routingContext)) {
+            endBuffer(routingContext, statusCode, Buffer.buffer(new JsonObject(body).encodePrettily()));
+        } else {
+            endBuffer(routingContext, statusCode, body);
+        }
+    }
+
+    private void endBuffer(RoutingContext routingContext, int statusCode, Buffer body) {
+        routingContext.response()
+                .setStatusCode(statusCode)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                .putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length()))
+                .end(body);
+    }
+
+    // Status of a raw reply, a service that does not set one replies with JSON errors only
+    private int statusOf(Message<ProductMessage> reply) {
+        String status = reply.headers().get(ProductMessage.STATUS_HEADER);
+        if (status != null) {
+            return Integer.parseInt(status);
+        }
+        return reply.body().json().containsKey("error") ? 400 : 200;
+    }
+
+    // Answer a conditional GET whose tag still matches, without a body
+    private void endNotModified(RoutingContext routingContext, String etag) {
+        routingContext.response()
+                .setStatusCode(304)
+                .putHeader(HttpHeaders.ETAG, etag)
+                .end();
+    }
+
+    // Strong tag of a resource at a version, pretty output being a different representation
+    private String etag(String resource, long version, boolean pretty) {
+        return "\"" + resource + "-" + version + (pretty ? "-pretty" : "") + "\"";
+    }
+
+    // Version in an If-None-Match tag we issued for this resource and representation, or -1.
+    // W/ is ignored since If-None-Match uses the weak comparison.
+    private long taggedVersion(RoutingContext routingContext, String resource) {
+        String ifNoneMatch = routingContext.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch == null) {
+            return -1;
+        }
+
+        String prefix = "\"" + resource + "-";
+        String suffix = isPretty(routingContext) ? "-pretty\"" : "\"";
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+
+            if (tag.startsWith(prefix) && tag.endsWith(suffix) && tag.length() > prefix.length() + suffix.length()) {
+                try {
+                    return Long.parseLong(tag.substring(prefix.length(), tag.length() - suffix.length()));
+                } catch (NumberFormatException e) {
+                    // Another representation, or not one of ours
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Version in an If-Match tag we issued for this resource, in either representation, or -1.
+    // If-Match uses the strong comparison, so W/ tags never match.
+    private long matchedVersion(String ifMatch, String resource) {
+        String prefix = "\"" + resource + "-";
+        for (String tag : ifMatch.split(",")) {
+            tag = tag.trim();
+            if (!tag.startsWith(prefix) || !tag.endsWith("\"")) {
+                continue;
+            }
+
+            String version = tag.substring(prefix.length(), tag.length() - 1);
+            if (version.endsWith("-pretty")) {
+                version = version.substring(0, version.length() - "-pretty".length());
+            }
+            try {
+                return Long.parseLong(version);
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        return -1;
+    }
+
+    // Version field of a product, or -1 for a product written before versioning
+    private long versionOf(JsonObject product) {
+        return product.getValue(ProductStore.VERSION_FIELD) instanceof Number ? product.getLong(ProductStore.VERSION_FIELD) : -1;
+    }
+
+    // Version header of a raw reply, or -1 from a service that does not send one
+    private long versionOf(Message<ProductMessage> reply) {
+        String version = reply.headers().get(ProductMessage.VERSION_HEADER);
+        return version != null ? Long.parseLong(version) : -1;
+    }
+
+    private void rememberCollectionVersion(long version) {
+        if (version >= collectionVersion) {
+            collectionVersion = version;
+            collectionVersionExpiresAt = System.currentTimeMillis() + collectionVersionTtlMillis;
+        }
+    }
+
+    private boolean isPretty(RoutingContext routingContext) {
+        return "true".equals(routingContext.request().getParam("pretty"));
+    }
+
+    // Reply to a command that did not get an answer from the Mongo service
+    // An overloaded or unavailable service is reported as 503 with Retry-After,
+    // a missed deadline as 504, anything else as 500
+    private void replyWithFailure(RoutingContext routingContext, Throwable cause) {
+        int statusCode = 500;
+        String error = "Internal error";
+
+        ReplyFailure failureType = cause instanceof ReplyException ? ((ReplyException) cause).failureType() : null;
+        int failureCode = cause instanceof ReplyException ? ((ReplyException) cause).failureCode() : 0;
+
+        if (failureType == ReplyFailure.RECIPIENT_FAILURE && failureCode == FailureCodes.OVERLOADED) {
+            statusCode = 503;
+            error = "Service overloaded, retry later";
+            routingContext.response().putHeader(HttpHeaders.RETRY_AFTER, retryAfterSeconds);
+        } else if (failureType == ReplyFailure.NO_HANDLERS
+                || (failureType == ReplyFailure.RECIPIENT_FAILURE && failureCode == FailureCodes.CIRCUIT_OPEN)) {
+            statusCode = 503;
+            error = "Service unavailable, retry later";
+            routingContext.response().putHeader(HttpHeaders.RETRY_AFTER, retryAfterSeconds);
+        } else if (failureType == ReplyFailure.TIMEOUT
+                || (failureType == ReplyFailure.RECIPIENT_FAILURE && failureCode == FailureCodes.DEADLINE_EXCEEDED)) {
+            statusCode = 504;
+            error = "Service timed out";
+        } else {
+            LOGGER.error("Mongo service command failed", cause);
+        }
+
+        endJson(routingContext, statusCode, new JsonObject().put("error", error));
+    }
+
     // Called for all default API HTTP GET, POST, PUT and DELETE
     public void defaultProcessorForAllAPI(RoutingContext routingContext) {
         String authToken = routingContext.request().headers().get("AuthToken");
@@ -43,13 +467,10 @@ public class ProductResources {
         if(authToken == null || !authToken.equals("123")) {
             LOGGER.info("Failed basic auth check");
 
-            routingContext.response()
-                    .setStatusCode(401)
-                    .putHeader(HttpHeaders.CONTENT_TYPE,"application/json")
-                    .end(Json.encodePrettily(new JsonObject().put("error", "Not Authorized to use these APIs")));
+            endJson(routingContext, 401, new JsonObject().put("error", "Not Authorized to use these APIs"));
 
         } else {
-            LOGGER.info("Passed basic auth check");
+            LOGGER.debug("Passed basic auth check");
 
             // Allowing CORS - Cross Domain API calls
             routingContext.response().putHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
@@ -61,26 +482,96 @@ public class ProductResources {
     }
 
 
-    // Get All Products as array of products
+    // Get All Products as array of products, tagged with the collection version
+    // ?stream=true (or Accept: application/x-ndjson) streams them from the Mongo cursor instead
+    // ?ids=a,b,c only gets the products with these ids
+    // ?numberPrefix=, ?numberFrom=&numberTo=, ?q= and ?fields= filter and project the products on the Mongo side
     public void getAllProducts(RoutingContext routingContext) {
+        String ids = routingContext.request().getParam("ids");
+        if (ids != null) {
+            getProductsByIds(routingContext, ids);
+            return;
+        }
 
         JsonObject cmdJson = new JsonObject();
-        cmdJson.put("cmd","findAll");
+        String filterError = addFilters(routingContext, cmdJson);
+        if (filterError != null) {
+            endJson(routingContext, 400, new JsonObject().put("error", filterError));
+            return;
+        }
+
+        String accept = routingContext.request().getHeader(HttpHeaders.ACCEPT);
+        boolean ndjson = accept != null && accept.contains(NDJSON);
 
-        vertx.eventBus().request(serviceName,
-                                        cmdJson.toString(),
+        if (ndjson || "true".equals(routingContext.request().getParam("stream"))) {
+            streamAllProducts(routingContext, ndjson, cmdJson);
+            return;
+        }
+
+        // Optional keyset pagination : ?limit=50&after=<next cursor>&sort=asc|desc
+        String limit = routingContext.request().getParam("limit");
+        String after = routingContext.request().getParam("after");
+        String sort = routingContext.request().getParam("sort");
+
+        if (limit != null) {
+            int pageSize;
+            try {
+                pageSize = Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                pageSize = 0;
+            }
+
+            if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                endJson(routingContext, 400, new JsonObject().put("error", "limit must be between 1 and " + MAX_PAGE_SIZE));
+                return;
+            }
+            cmdJson.put("limit", pageSize);
+        }
+        if (after != null) {
+            cmdJson.put("after", after);
+        }
+        if (sort != null) {
+            if (!sort.equals("asc") && !sort.equals("desc")) {
+                endJson(routingContext, 400, new JsonObject().put("error", "sort must be asc or desc"));
+                return;
+            }
+            cmdJson.put("sort", sort);
+        }
+
+        // Nothing changed since the client's copy : answer without asking the Mongo service.
+        // Otherwise let the Mongo service compare, it skips reading the products on a match.
+        boolean pretty = isPretty(routingContext);
+        long taggedVersion = taggedVersion(routingContext, "products");
+        if (taggedVersion >= 0) {
+            if (taggedVersion == collectionVersion && System.currentTimeMillis() < collectionVersionExpiresAt) {
+                endNotModified(routingContext, etag("products", taggedVersion, pretty));
+                return;
+            }
+            cmdJson.put("ifNoneMatch", taggedVersion);
+        }
+
+        sendRawCommand(ProductCommand.FIND_ALL,
+                                        cmdJson,
                                         asyncResult -> {
                                             if(asyncResult.succeeded()) {
-                                                JsonObject reply = new JsonObject(asyncResult.result().body().toString());
-                                                System.out.println(serviceName + " :: Got reply --> " + reply.toString());
+                                                // Written as encoded by the Mongo service
+                                                Message<ProductMessage> reply = asyncResult.result();
+                                                int statusCode = statusOf(reply);
+                                                long version = versionOf(reply);
 
-                                                int statusCode = (reply.containsKey("products")) ? 200 : 400;
+                                                if (version >= 0) {
+                                                    rememberCollectionVersion(version);
+                                                    if (statusCode == 304) {
+                                                        endNotModified(routingContext, etag("products", version, pretty));
+                                                        return;
+                                                    }
+                                                    routingContext.response().putHeader(HttpHeaders.ETAG, etag("products", version, pretty));
+                                                }
 
-                                                routingContext.response()
-                                                        .setStatusCode(statusCode)
-                                                        .putHeader("content-type","application/json")
-                                                        .end(Json.encodePrettily(reply));
+                                                endRaw(routingContext, statusCode, reply.body().raw());
 
+                                            } else {
+                                                replyWithFailure(routingContext, asyncResult.cause());
                                             }
 
                                         }
@@ -88,31 +579,325 @@ public class ProductResources {
 
     }
 
-    // Get one product that matches input id and return as a single Json object
+    // Copy the filter and projection parameters of a product listing into the command
+    // Returns what is wrong with them, or null when they are fine
+    private String addFilters(RoutingContext routingContext, JsonObject cmdJson) {
+        for (String name : new String[] {"numberPrefix", "numberFrom", "numberTo", "q"}) {
+            String value = routingContext.request().getParam(name);
+            if (value != null) {
+                if (value.isEmpty() || value.length() > MAX_FILTER_LENGTH) {
+                    return name + " must hold between 1 and " + MAX_FILTER_LENGTH + " characters";
+                }
+                cmdJson.put(name, value);
+            }
+        }
+
+        String fields = routingContext.request().getParam("fields");
+        if (fields != null) {
+            JsonArray fieldList = new JsonArray();
+            for (String field : fields.split(",")) {
+                field = field.trim();
+                if (!FIELD_NAME.matcher(field).matches()) {
+                    return "fields must be a comma separated list of field names";
+                }
+                fieldList.add(field);
+            }
+            cmdJson.put("fields", fieldList);
+        }
+        return null;
+    }
+
+    // Stream all products as a chunked JSON array, or NDJSON, with one chunk per cursor batch.
+    // Each batch is acknowledged only once the response can take more data, so a slow client
+    // slows down the Mongo cursor instead of building up memory.
+    private void streamAllProducts(RoutingContext routingContext, boolean ndjson, JsonObject cmdJson) {
+        HttpServerResponse response = routingContext.response();
+        String streamAddress = serviceName + ".stream." + UUID.randomUUID();
+
+        MessageConsumer<Buffer> consumer = vertx.eventBus().consumer(streamAddress);
+        response.closeHandler(v -> consumer.unregister());
+
+        consumer.handler(message -> {
+            String kind = message.headers().get(CursorStreamer.STREAM_HEADER);
+
+            if (response.closed()) {
+                consumer.unregister();
+                message.fail(410, "Client went away");
+                return;
+            }
+
+            if (CursorStreamer.STREAM_ERROR.equals(kind)) {
+                consumer.unregister();
+                if (response.headWritten()) {
+                    // Too late for a status code, cut the connection so the client sees a truncated body
+                    response.reset();
+                } else {
+                    response.setStatusCode(500)
+                            .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                            .end(new JsonObject().put("error", "Exception & No items found").toBuffer());
+                }
+                return;
+            }
+
+            if (!response.headWritten()) {
+                response.setStatusCode(200)
+                        .setChunked(true)
+                        .putHeader(HttpHeaders.CONTENT_TYPE, ndjson ? NDJSON : "application/json");
+                if (!ndjson) {
+                    response.write("[");
+                }
+            } else if (!ndjson && CursorStreamer.STREAM_CHUNK.equals(kind)) {
+                response.write(",");
+            }
+
+            if (CursorStreamer.STREAM_END.equals(kind)) {
+                consumer.unregister();
+                response.end(ndjson ? "" : "]");
+                return;
+            }
+
+            response.write(message.body());
+
+            if (response.writeQueueFull()) {
+                response.drainHandler(v -> message.reply(null));
+            } else {
+                message.reply(null);
+            }
+        });
+
+        consumer.completionHandler(registered -> {
+            cmdJson.put("address", streamAddress);
+            cmdJson.put("format", ndjson ? "ndjson" : "json");
+
+            sendCommand(ProductCommand.FIND_ALL_STREAM,
+                                        cmdJson,
+                                        asyncResult -> {
+                                            if(asyncResult.failed()) {
+                                                LOGGER.error("Could not start product stream", asyncResult.cause());
+                                                consumer.unregister();
+                                                replyWithFailure(routingContext, asyncResult.cause());
+                                            }
+                                        }
+            );
+        });
+    }
+
+    // Hit, miss and eviction counters of the product cache
+    public void getCacheStats(RoutingContext routingContext) {
+        endJson(routingContext, 200, productCache.stats());
+    }
+
+    // Number of products matching the ?numberPrefix=, ?numberFrom=&numberTo= and ?q= filters of the listing,
+    // counted by the Mongo service instead of moving the products here
+    public void countProducts(RoutingContext routingContext) {
+        aggregate(routingContext, ProductCommand.COUNT, new JsonObject());
+    }
+
+    // ProductStats of the products matching the listing filters, ?prefixLength= sets the length of
+    // the number prefixes they are grouped by, 1 by default
+    public void getProductStats(RoutingContext routingContext) {
+        JsonObject cmdJson = new JsonObject();
+
+        String prefixLength = routingContext.request().getParam("prefixLength");
+        if (prefixLength != null) {
+            int length;
+            try {
+                length = Integer.parseInt(prefixLength);
+            } catch (NumberFormatException e) {
+                length = 0;
+            }
+            if (length < 1 || length > ProductStats.MAX_PREFIX_LENGTH) {
+                endJson(routingContext, 400, new JsonObject().put("error", "prefixLength must be between 1 and " + ProductStats.MAX_PREFIX_LENGTH));
+                return;
+            }
+            cmdJson.put("prefixLength", length);
+        }
+
+        aggregate(routingContext, ProductCommand.STATS, cmdJson);
+    }
+
+    // Send a count or stats command, or share the reply of the same one sent less than
+    // products.aggregates.ttlMs ago
+    private void aggregate(RoutingContext routingContext, ProductCommand command, JsonObject cmdJson) {
+        String filterError = addFilters(routingContext, cmdJson);
+        if (filterError != null) {
+            endJson(routingContext, 400, new JsonObject().put("error", filterError));
+            return;
+        }
+        cmdJson.remove("fields");
+
+        aggregateCache.get(command + cmdJson.encode(), () -> {
+                    Promise<JsonObject> reply = Promise.promise();
+                    sendCommand(command, cmdJson, reply);
+                    return reply.future();
+                })
+                .onComplete(asyncResult -> {
+                    if (asyncResult.failed()) {
+                        replyWithFailure(routingContext, asyncResult.cause());
+                    } else if (asyncResult.result().containsKey("error")) {
+                        endJson(routingContext, 400, asyncResult.result());
+                    } else {
+                        endJson(routingContext, 200, asyncResult.result());
+                    }
+                });
+    }
+
+    // Get the products with the given comma separated ids as {"products": [...], "missing": [ids]}
+    // Products come from the cache or the product loader, so the lookups of all ids are one Mongo query
+    private void getProductsByIds(RoutingContext routingContext, String ids) {
+        Set<String> idSet = new LinkedHashSet<>();
+        for (String id : ids.split(",")) {
+            if (!id.isBlank()) {
+                idSet.add(id.trim());
+            }
+        }
+
+        if (idSet.isEmpty() || idSet.size() > MAX_PAGE_SIZE) {
+            endJson(routingContext, 400, new JsonObject().put("error", "ids must hold between 1 and " + MAX_PAGE_SIZE + " ids"));
+            return;
+        }
+
+        long cacheGeneration = productCache.generation();
+        List<String> idList = new ArrayList<>(idSet);
+        List<Future<Buffer>> lookups = new ArrayList<>(idList.size());
+        for (String id : idList) {
+            ProductCache.Entry cached = productCache.get(id);
+            if (cached != null) {
+                lookups.add(Future.succeededFuture(cached.product()));
+            } else {
+                lookups.add(productLoader.load(id).map(loaded -> {
+                    if (loaded == null) {
+                        return null;
+                    }
+                    productCache.put(id, loaded.product(), loaded.version(), cacheGeneration);
+                    return loaded.product();
+                }));
+            }
+        }
+
+        Future.all(lookups).onComplete(asyncResult -> {
+            if (asyncResult.failed()) {
+                replyWithFailure(routingContext, asyncResult.cause());
+                return;
+            }
+
+            // Products are already encoded, so the reply is assembled around them
+            Buffer body = Buffer.buffer().appendString("{\"products\":[");
+            JsonArray missing = new JsonArray();
+            boolean first = true;
+            for (int i = 0; i < idList.size(); i++) {
+                Buffer product = lookups.get(i).result();
+                if (product == null) {
+                    missing.add(idList.get(i));
+                    continue;
+                }
+                if (!first) {
+                    body.appendString(",");
+                }
+                body.appendBuffer(product);
+                first = false;
+            }
+            body.appendString("],\"missing\":").appendBuffer(missing.toBuffer()).appendString("}");
+
+            endRaw(routingContext, 200, body);
+        });
+    }
+
+    // Get one product that matches input id and return as a single Json object, tagged with its version
+    // Served from the product cache when possible, otherwise through the product loader
     public void getProductById(RoutingContext routingContext) {
         final String productId = routingContext.request().getParam("id");
+        boolean pretty = isPretty(routingContext);
+        long taggedVersion = taggedVersion(routingContext, productId);
+
+        ProductCache.Entry cached = productCache.get(productId);
+        if (cached != null) {
+            if (cached.version() >= 0) {
+                if (cached.version() == taggedVersion) {
+                    endNotModified(routingContext, etag(productId, taggedVersion, pretty));
+                    return;
+                }
+                routingContext.response().putHeader(HttpHeaders.ETAG, etag(productId, cached.version(), pretty));
+            }
+            endRaw(routingContext, 200, cached.product());
+            return;
+        }
+        long cacheGeneration = productCache.generation();
+
+        // A conditional request asks on its own, the Mongo service then leaves out an unchanged product
+        if (taggedVersion >= 0) {
+            getTaggedProductById(routingContext, productId, taggedVersion, cacheGeneration);
+            return;
+        }
+
+        productLoader.load(productId).onComplete(asyncResult -> {
+            if (asyncResult.failed()) {
+                replyWithFailure(routingContext, asyncResult.cause());
+                return;
+            }
+
+            ProductLoader.Loaded loaded = asyncResult.result();
+            if (loaded == null) {
+                endJson(routingContext, 400, new JsonObject().put("error", "No items found"));
+                return;
+            }
+
+            productCache.put(productId, loaded.product(), loaded.version(), cacheGeneration);
+            if (loaded.version() >= 0) {
+                routingContext.response().putHeader(HttpHeaders.ETAG, etag(productId, loaded.version(), pretty));
+            }
+            endRaw(routingContext, 200, loaded.product());
+        });
+    }
+
+    // Product loader read of an id asked for alone : a raw FIND_BY_ID, so the product is written as the
+    // Mongo service encoded it rather than decoded from a FIND_BY_IDS reply and encoded again
+    private void readProduct(String productId, Handler<AsyncResult<ProductLoader.Loaded>> resultHandler) {
+        sendRawCommand(ProductCommand.FIND_BY_ID,
+                        new JsonObject().put("id", productId),
+                        asyncResult -> resultHandler.handle(asyncResult.map(reply -> {
+                            if (statusOf(reply) != 200) {
+                                return null;
+                            }
+                            return new ProductLoader.Loaded(reply.body().raw(), versionOf(reply));
+                        })));
+    }
+
+    private void getTaggedProductById(RoutingContext routingContext, String productId, long taggedVersion, long cacheGeneration) {
+        boolean pretty = isPretty(routingContext);
 
         JsonObject cmdJson = new JsonObject();
-        cmdJson.put("cmd","findById");
         cmdJson.put("id",productId);
+        cmdJson.put("ifNoneMatch", taggedVersion);
 
-        vertx.eventBus().request(serviceName,
-                                    cmdJson.toString(),
+        sendRawCommand(ProductCommand.FIND_BY_ID,
+                                    cmdJson,
                                     messageAsyncResult -> {
                                         if(messageAsyncResult.succeeded()) {
-                                            JsonObject reply = new JsonObject(messageAsyncResult.result().body().toString());
-                                            System.out.println(serviceName + " :: Got reply --> " + reply.toString());
-
-                                            int statusCode = (reply.containsKey("error")) ? 400 : 200;
-
-                                            routingContext.response()
-                                                    .setStatusCode(statusCode)
-                                                    .putHeader("content-type","application/json")
-                                                    .end(Json.encodePrettily(reply));
+                                            // Written, and cached, as encoded by the Mongo service
+                                            Message<ProductMessage> reply = messageAsyncResult.result();
+                                            int statusCode = statusOf(reply);
+                                            long version = versionOf(reply);
+                                            Buffer product = reply.body().raw();
 
+                                            if (statusCode == 304) {
+                                                endNotModified(routingContext, etag(productId, version, pretty));
+                                                return;
+                                            }
+                                            if (statusCode == 200) {
+                                                productCache.put(productId, product, version, cacheGeneration);
+                                            }
+                                            if (version >= 0 && statusCode == 200) {
+                                                routingContext.response().putHeader(HttpHeaders.ETAG, etag(productId, version, pretty));
                                             }
 
+                                            endRaw(routingContext, statusCode, product);
+
+                                        } else {
+                                            replyWithFailure(routingContext, messageAsyncResult.cause());
                                         }
+
+                                    }
                 );
     }
 
@@ -121,7 +906,6 @@ public class ProductResources {
     public void addProduct(RoutingContext routingContext) {
 
         JsonObject cmdJson = new JsonObject();
-        cmdJson.put("cmd","add");
 
         JsonObject jsonBody = routingContext.body().asJsonObject();
         String number = jsonBody.getString("number");
@@ -131,12 +915,14 @@ public class ProductResources {
 
         Product newItem = new Product("", number, description);
 
-        vertx.eventBus().request(serviceName,
-                                    cmdJson.toString(),
+        sendCommand(ProductCommand.ADD,
+                                    cmdJson,
                                     asyncResult -> {
                                         if(asyncResult.succeeded()) {
-                                            JsonObject reply = new JsonObject(asyncResult.result().body().toString());
-                                            System.out.println(serviceName + " :: Got reply --> " + reply.toString());
+                                            JsonObject reply = asyncResult.result();
+                                            if (LOGGER.isDebugEnabled()) {
+                                                LOGGER.debug(serviceName + " :: Got reply --> " + reply);
+                                            }
 
                                             int statusCode = 400;
 
@@ -144,86 +930,134 @@ public class ProductResources {
                                                 // Get unique id
                                                 String newItemId = reply.getString("id");
                                                 newItem.setId(newItemId);
+                                                newItem.setVersion(reply.getLong("version", 0L));
+                                                newItem.setLastModified(reply.getLong("lastModified", 0L));
                                                 statusCode = (!newItemId.isEmpty()) ? 201 : 400;
+                                                if (statusCode == 201 && reply.containsKey("version")) {
+                                                    routingContext.response().putHeader(HttpHeaders.ETAG,
+                                                                                        etag(newItemId, newItem.getVersion(), isPretty(routingContext)));
+                                                }
 
-                                                routingContext.response()
-                                                        .setStatusCode(statusCode)
-                                                        .putHeader("content-type","application/json")
-                                                        .end(Json.encodePrettily(newItem));
+                                                endJson(routingContext, statusCode, newItem);
+                                                return;
                                             }
 
                                             // Any other error
-                                            routingContext.response()
-                                                    .setStatusCode(statusCode)
-                                                    .putHeader("content-type","application/json")
-                                                    .end(Json.encodePrettily(reply));
+                                            endJson(routingContext, statusCode, reply);
 
 
+                                        } else {
+                                            replyWithFailure(routingContext, asyncResult.cause());
                                         }
 
                                     }
                 );
     }
 
+    // Insert products sent as NDJSON, one product per line, and stream back one result line per product
+    public void bulkAddProducts(RoutingContext routingContext) {
+        if ("100-continue".equalsIgnoreCase(routingContext.request().getHeader(HttpHeaders.EXPECT))) {
+            routingContext.response().writeContinue();
+        }
+
+        new BulkImport(routingContext.request(),
+                        routingContext.response(),
+                        bulkBatchSize,
+                        bulkMaxRecordSize,
+                        (products, resultHandler) -> sendCommand(ProductCommand.BULK_INSERT,
+                                                                    new JsonObject().put("products", products),
+                                                                    resultHandler)
+        ).start();
+    }
+
     // Update the item based on the url product id
-    // Return updated product info
+    // Return the product as updated, with its new ETag, so clients do not have to get it again.
+    // With If-Match the product is only updated while it is still at the tagged version, 412 otherwise.
     public void updateProductById(RoutingContext routingContext) {
 
         final String productId = routingContext.request().getParam("id");
+        final boolean pretty = isPretty(routingContext);
 
         JsonObject jsonBody = routingContext.body().asJsonObject();
 
 
         JsonObject cmdJson = new JsonObject();
-        cmdJson.put("cmd","update");
         cmdJson.put("id", productId);
         cmdJson.put("product", jsonBody);
 
+        String ifMatch = routingContext.request().getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && !"*".equals(ifMatch.trim())) {
+            long expectedVersion = matchedVersion(ifMatch, productId);
+            if (expectedVersion < 0) {
+                endJson(routingContext, 412, new JsonObject().put("error", "If-Match does not name a version of this product"));
+                return;
+            }
+            cmdJson.put("expectedVersion", expectedVersion);
+        }
+
 
-        vertx.eventBus().request(serviceName,
-                                    cmdJson.toString(),
+        sendCommand(ProductCommand.UPDATE,
+                                    cmdJson,
                                     asyncResult -> {
                                         if(asyncResult.succeeded()) {
-                                            JsonObject reply = new JsonObject(asyncResult.result().body().toString());
-                                            System.out.println(serviceName + " :: Got reply --> " + reply.toString());
-                                            JsonObject apiResponse = new JsonObject();
-
-                                            int statusCode = 400;
+                                            JsonObject reply = asyncResult.result();
+                                            if (LOGGER.isDebugEnabled()) {
+                                                LOGGER.debug(serviceName + " :: Got reply --> " + reply);
+                                            }
 
-                                            if(reply.containsKey("updated") && reply.getBoolean("updated")) {
-                                                statusCode = 200;
-                                                apiResponse.put("updated", true);
-                                            } else {
-                                                apiResponse.put("updated", false);
+                                            if (reply.getBoolean("notFound", false)) {
+                                                endJson(routingContext, 404, new JsonObject().put("error", reply.getString("error")));
+                                                return;
+                                            }
+                                            if (reply.getBoolean("conflict", false)) {
+                                                // Tag of the version it is at, for the client to get it and retry
+                                                routingContext.response().putHeader(HttpHeaders.ETAG, etag(productId, versionOf(reply), pretty));
+                                                endJson(routingContext, 412, reply);
+                                                return;
+                                            }
+                                            if (reply.containsKey("error")) {
+                                                endJson(routingContext, 400, reply);
+                                                return;
                                             }
 
-                                            routingContext.response()
-                                                    .setStatusCode(statusCode)
-                                                    .putHeader("content-type","application/json")
-                                                    .end(Json.encodePrettily(apiResponse));
+                                            long version = versionOf(reply);
+                                            if (version >= 0) {
+                                                routingContext.response().putHeader(HttpHeaders.ETAG, etag(productId, version, pretty));
+                                            }
+                                            endJson(routingContext, 200, reply);
 
+                                        } else {
+                                            replyWithFailure(routingContext, asyncResult.cause());
                                         }
                                     }
                 );
 
     }
 
-    // Delete item and return 200 on success or 400 on failure
+    // Delete item and return 204 when it was deleted, 404 when there was no such item
     public void deleteProductById(RoutingContext routingContext) {
         final String productId = routingContext.request().getParam("id");
 
         JsonObject cmdJson = new JsonObject();
-        cmdJson.put("cmd","delete");
         cmdJson.put("id", productId);
 
-        vertx.eventBus().request(serviceName,
-                                    cmdJson.toString(),
+        sendCommand(ProductCommand.DELETE,
+                                    cmdJson,
                                     asyncResult -> {
                                         if(asyncResult.succeeded()) {
-                                            routingContext.response()
-                                                    .setStatusCode(200)
-                                                    .putHeader("content-type","application/json")
-                                                    .end();
+                                            JsonObject reply = asyncResult.result();
+
+                                            if (reply.getBoolean("notFound", false)) {
+                                                endJson(routingContext, 404, new JsonObject().put("error", reply.getString("error")));
+                                            } else if (reply.getBoolean("deleted", false)) {
+                                                routingContext.response()
+                                                        .setStatusCode(204)
+                                                        .end();
+                                            } else {
+                                                endJson(routingContext, 400, reply);
+                                            }
+                                        } else {
+                                            replyWithFailure(routingContext, asyncResult.cause());
                                         }
                                     }
 
@@ -0,0 +1,35 @@
+package com.arushi.practicevertx.resources;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Readiness of the API of this process, for /health/ready. Every API verticle instance registers here,
+// so the probe gets the same answer whichever instance accepts its connection : ready once an instance
+// is deployed, while every one of them is warm and none has its Mongo service circuit open.
+public final class Readiness {
+
+    private static final Set<ProductResources> INSTANCES = ConcurrentHashMap.newKeySet();
+
+    private Readiness() {
+    }
+
+    public static void register(ProductResources productResources) {
+        INSTANCES.add(productResources);
+    }
+
+    public static void unregister(ProductResources productResources) {
+        INSTANCES.remove(productResources);
+    }
+
+    public static boolean isReady() {
+        if (INSTANCES.isEmpty()) {
+            return false;
+        }
+        for (ProductResources productResources : INSTANCES) {
+            if (!productResources.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,168 @@
+package com.arushi.practicevertx.database;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedProductFileTest {
+
+    // Where the header keeps the end of the records, see MappedProductFile
+    private static final int END_OFFSET = 8;
+    private static final long INITIAL_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private MappedProductFile file;
+
+    @Before
+    public void open() throws IOException {
+        path = folder.getRoot().toPath().resolve("products.db");
+        file = MappedProductFile.open(path, INITIAL_SIZE);
+    }
+
+    @After
+    public void release() {
+        if (file != null) {
+            file.release();
+        }
+    }
+
+    @Test
+    public void keepsInsertsUpdatesAndDeletesAcrossReopen() throws IOException {
+        assertEquals(1, file.insert("a", product("a", "A1", "first")));
+        assertEquals(2, file.insert("b", product("b", "B1", "second")));
+        assertEquals(-1, file.insert("a", product("a", "A2", "duplicate")));
+
+        MappedProductFile.Update update = file.update("a", new JsonObject().put("description", "changed"), 1, 42L);
+        assertEquals(3, update.collectionVersion);
+        assertEquals(2, update.version);
+
+        MappedProductFile.Update conflict = file.update("a", new JsonObject().put("description", "stale"), 1, 43L);
+        assertNull(conflict.product);
+        assertEquals(2, conflict.version);
+        assertNull(file.update("missing", new JsonObject(), -1, 44L));
+
+        assertEquals(4, file.delete("b"));
+        assertEquals(-1, file.delete("b"));
+
+        reopen();
+
+        assertEquals(1, file.size());
+        assertEquals(4, file.collectionVersion());
+        JsonObject a = file.get("a");
+        assertEquals("changed", a.getString("description"));
+        assertEquals("A1", a.getString("number"));
+        assertEquals(2L, (long) a.getLong(ProductStore.VERSION_FIELD));
+        assertEquals(42L, (long) a.getLong(ProductStore.LAST_MODIFIED_FIELD));
+        assertEquals(2, file.version("a"));
+        assertNull(file.get("b"));
+        assertEquals(-1, file.version("b"));
+
+        // The id of a deleted product can be used again
+        assertEquals(5, file.insert("b", product("b", "B2", "again")));
+    }
+
+    @Test
+    public void compactionKeepsTheLatestVersions() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            file.insert("p" + i, product("p" + i, "N" + i, "product " + i));
+        }
+        // Every product is written again a few times, so the dead records outweigh the live ones
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 50; i++) {
+                file.update("p" + i, new JsonObject().put("description", "round " + round), -1, round);
+            }
+        }
+        file.delete("p0");
+        long collectionVersion = file.collectionVersion();
+        int endBefore = recordsEnd();
+
+        reopen();
+
+        assertTrue("compacted " + recordsEnd() + " < " + endBefore, recordsEnd() < endBefore);
+        assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".compact")));
+        assertEquals(49, file.size());
+        assertEquals(collectionVersion, file.collectionVersion());
+        assertNull(file.get("p0"));
+        for (int i = 1; i < 50; i++) {
+            JsonObject product = file.get("p" + i);
+            assertEquals("round 2", product.getString("description"));
+            assertEquals("N" + i, product.getString("number"));
+            assertEquals(4, file.version("p" + i));
+        }
+
+        // Still writable, and the writes survive another reopen
+        file.update("p1", new JsonObject().put("description", "after"), 4, 5L);
+        reopen();
+        assertEquals("after", file.get("p1").getString("description"));
+        assertEquals(5, file.version("p1"));
+    }
+
+    @Test
+    public void ignoresATruncatedLastRecordOnOpen() throws IOException {
+        file.insert("a", product("a", "A", "kept"));
+        file.insert("b", product("b", "B", "torn"));
+        file.release();
+        file = null;
+
+        // The end of the records now falls inside the last record, as if its write was cut short
+        setRecordsEnd(recordsEnd() - 5);
+        file = MappedProductFile.open(path, INITIAL_SIZE);
+
+        assertEquals(1, file.size());
+        assertNotNull(file.get("a"));
+        assertNull(file.get("b"));
+
+        // The torn record is written over by the next insert
+        file.insert("c", product("c", "C", "after"));
+        reopen();
+        assertEquals(2, file.size());
+        assertEquals("kept", file.get("a").getString("description"));
+        assertEquals("after", file.get("c").getString("description"));
+        assertNull(file.get("b"));
+    }
+
+    private void reopen() throws IOException {
+        file.release();
+        file = MappedProductFile.open(path, INITIAL_SIZE);
+    }
+
+    private static JsonObject product(String id, String number, String description) {
+        return ProductStore.versioned(new JsonObject()
+                                            .put("_id", id)
+                                            .put("number", number)
+                                            .put("description", description));
+    }
+
+    private int recordsEnd() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer end = ByteBuffer.allocate(4);
+            channel.read(end, END_OFFSET);
+            return end.getInt(0);
+        }
+    }
+
+    private void setRecordsEnd(int end) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, end), END_OFFSET);
+        }
+    }
+}